@@ -0,0 +1,172 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes a series of pictures: how many shots, how far apart, how late a shot may fire before
+ * it is skipped, and camera parameters to override for individual shots.
+ * <p/>
+ * Plans are immutable, build them with {@link Builder}.
+ */
+public class BurstPlan {
+    /** Interval value meaning the next shot fires as soon as the previous one is delivered */
+    public static final long AS_FAST_AS_POSSIBLE = 0;
+
+    /** Deadline value meaning a shot is never skipped however late it is */
+    public static final long NO_DEADLINE = -1;
+
+    private final int shotCount;
+    private final long intervalMs;
+    private final long deadlineMs;
+    private final Map<String, String>[] overrides;
+
+    private BurstPlan(Builder builder, Map<String, String>[] overrides) {
+        shotCount = builder.shotCount;
+        intervalMs = builder.intervalMs;
+        deadlineMs = builder.deadlineMs;
+        this.overrides = overrides;
+    }
+
+    public int getShotCount() {
+        return shotCount;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    /** Camera parameters to set for this shot, or null if the shot uses the current parameters */
+    public Map<String, String> getOverrides(int shot) {
+        return overrides[shot];
+    }
+
+    /** True if any shot of the plan overrides camera parameters */
+    public boolean hasOverrides() {
+        for (Map<String, String> shotOverrides : overrides) {
+            if (shotOverrides != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class Builder {
+        private int shotCount = 1;
+        private long intervalMs = AS_FAST_AS_POSSIBLE;
+        private long deadlineMs = NO_DEADLINE;
+        private Map<String, String>[] overrides;
+
+        public Builder setShotCount(int shotCount) {
+            if (shotCount < 1) {
+                throw new IllegalArgumentException("Shot count must be positive: " + shotCount);
+            }
+            this.shotCount = shotCount;
+            return this;
+        }
+
+        /**
+         * Time between the triggers of consecutive shots, measured from the start of the burst.
+         * With {@link #AS_FAST_AS_POSSIBLE} each shot follows the delivery of the previous one.
+         */
+        public Builder setIntervalMs(long intervalMs) {
+            if (intervalMs < 0) {
+                throw new IllegalArgumentException("Interval must not be negative: " + intervalMs);
+            }
+            this.intervalMs = intervalMs;
+            return this;
+        }
+
+        /**
+         * Skip a shot that cannot be triggered within this many ms of its scheduled time,
+         * {@link #NO_DEADLINE} to never skip
+         */
+        public Builder setDeadlineMs(long deadlineMs) {
+            if (deadlineMs < 0 && deadlineMs != NO_DEADLINE) {
+                throw new IllegalArgumentException("Deadline must not be negative: " + deadlineMs);
+            }
+            this.deadlineMs = deadlineMs;
+            return this;
+        }
+
+        /** Set a camera parameter, e.g. "exposure-compensation", for a single shot */
+        @SuppressWarnings("unchecked")
+        public Builder setOverride(int shot, String key, String value) {
+            if (overrides == null || overrides.length < shotCount) {
+                Map<String, String>[] grown = new Map[shotCount];
+                if (overrides != null) {
+                    System.arraycopy(overrides, 0, grown, 0, overrides.length);
+                }
+                overrides = grown;
+            }
+            if (shot < 0 || shot >= shotCount) {
+                throw new IllegalArgumentException("No shot " + shot + " in a burst of " + shotCount);
+            }
+            if (overrides[shot] == null) {
+                overrides[shot] = new HashMap<>();
+            }
+            overrides[shot].put(key, value);
+            return this;
+        }
+
+        @SuppressWarnings("unchecked")
+        public BurstPlan build() {
+            // Copy so that reusing the builder cannot change a plan already built
+            Map<String, String>[] sized = new Map[shotCount];
+            if (overrides != null) {
+                for (int i = 0; i < Math.min(overrides.length, shotCount); ++i) {
+                    if (overrides[i] != null) {
+                        sized[i] = new HashMap<>(overrides[i]);
+                    }
+                }
+            }
+            return new BurstPlan(this, sized);
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a {@link BurstPlan} on a camera.
+ * <p/>
+ * Shots are scheduled against absolute times measured from the start of the burst, so a late shot
+ * does not push back the ones after it. A plan shot {@link BurstPlan#AS_FAST_AS_POSSIBLE} has no
+ * such times, each shot after the first is scheduled when the previous one is delivered. The
+ * scheduled, triggered and delivered times of every shot are kept in a {@link BurstTiming} to make
+ * jitter visible.
+ * <p/>
+ * A {@link Gate} can hold off the next shot, e.g. while pictures already taken wait for storage.
+ * The wait counts as delay of that shot, and shots past their deadline are skipped once it opens.
+ * <p/>
+ * All methods must be called on the thread of the handler given to the constructor.
+ */
+@SuppressWarnings("deprecation")
+public class BurstScheduler {
+    private static final String TAG = "BURST SCHEDULER";
+
+    public interface Listener {
+        /**
+         * A picture of the burst has been delivered, preview is already restarted. The burst may
+         * be cancelled from here, no further shot is then triggered.
+         */
+        void onShot(int shot, byte[] data);
+
+        /** No more shots will be delivered, either because the plan is done or it was cancelled */
+        void onBurstFinished(BurstTiming timing, boolean cancelled);
+    }
+
+    /** Decides whether the next shot can be triggered yet */
+    public interface Gate {
+        /**
+         * @param onOpen to be run on the scheduler's thread once the gate opens, if it is closed
+         * @return true to trigger the shot now
+         */
+        boolean isOpen(Runnable onOpen);
+    }
+
+    /** Per shot timestamps in {@link SystemClock#uptimeMillis()}, 0 if the shot never got there */
+    public static class BurstTiming {
+        public final long[] scheduledMs;
+        public final long[] triggeredMs;
+        public final long[] deliveredMs;
+
+        private BurstTiming(int shotCount) {
+            scheduledMs = new long[shotCount];
+            triggeredMs = new long[shotCount];
+            deliveredMs = new long[shotCount];
+        }
+
+        /**
+         * How late the shot was triggered compared to its schedule, for shots as fast as possible
+         * the time from the delivery of the previous shot
+         */
+        public long getJitterMs(int shot) {
+            return triggeredMs[shot] == 0 ? -1 : triggeredMs[shot] - scheduledMs[shot];
+        }
+
+        public boolean isMissed(int shot) {
+            return triggeredMs[shot] == 0;
+        }
+
+        public int getShotCount() {
+            return scheduledMs.length;
+        }
+    }
+
+    private final Handler handler;
+
+    private Camera camera;
+    private CameraSettings settings;
+    private BurstPlan plan;
+    private Listener listener;
+    private Gate gate;
+    private BurstTiming timing;
+    private Map<String, String> restoreParams;
+    private int nextShot;
+    private boolean inFlight;
+    private boolean cancelled;
+    private boolean waitingForGate;
+    private long triggeredNs;
+
+    private final CaptureMetrics metrics = CaptureMetrics.getInstance();
+
+    private final Runnable triggerRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trigger();
+        }
+    };
+
+    private final Runnable gateOpened = new Runnable() {
+        @Override
+        public void run() {
+            if (waitingForGate) {
+                waitingForGate = false;
+                trigger();
+            }
+        }
+    };
+
+    private final Camera.PictureCallback jpegCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            onDelivered(data);
+        }
+    };
+
+    public BurstScheduler(Handler handler) {
+        this.handler = handler;
+    }
+
+    /** Gate checked before every shot, null to trigger shots as scheduled */
+    public void setGate(Gate gate) {
+        this.gate = gate;
+    }
+
+    public boolean isRunning() {
+        return plan != null;
+    }
+
+    /**
+     * Start taking pictures. The first shot is triggered right away.
+     *
+     * @param settings the camera's parameters, per shot overrides are applied through it
+     */
+    public void start(Camera camera, CameraSettings settings, BurstPlan plan, Listener listener) {
+        if (isRunning()) {
+            throw new IllegalStateException("A burst is already running");
+        }
+        this.camera = camera;
+        this.settings = settings;
+        this.plan = plan;
+        this.listener = listener;
+        timing = new BurstTiming(plan.getShotCount());
+        restoreParams = plan.hasOverrides() ? new HashMap<String, String>() : null;
+        nextShot = 0;
+        inFlight = false;
+        cancelled = false;
+        waitingForGate = false;
+
+        long start = SystemClock.uptimeMillis();
+        if (isChained()) {
+            // The others are scheduled as the shots before them are delivered
+            timing.scheduledMs[0] = start;
+        } else {
+            for (int i = 0; i < plan.getShotCount(); ++i) {
+                timing.scheduledMs[i] = start + i * plan.getIntervalMs();
+            }
+        }
+        trigger();
+    }
+
+    /** Stop the burst. A picture already being taken is still delivered. */
+    public void cancel() {
+        if (!isRunning()) {
+            return;
+        }
+        cancelled = true;
+        waitingForGate = false;
+        handler.removeCallbacks(triggerRunnable);
+        if (!inFlight) {
+            finish();
+        }
+    }
+
+    /** Stop the burst without waiting for a picture in flight, e.g. when the camera is released */
+    public void abort() {
+        if (!isRunning()) {
+            return;
+        }
+        cancelled = true;
+        waitingForGate = false;
+        handler.removeCallbacks(triggerRunnable);
+        finish();
+    }
+
+    private void trigger() {
+        if (cancelled) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        long deadline = plan.getDeadlineMs();
+        // Skip shots that are already too late, the times of the skipped ones stay 0
+        while (nextShot < plan.getShotCount() && deadline != BurstPlan.NO_DEADLINE &&
+                now > timing.scheduledMs[nextShot] + deadline) {
+            Log.d(TAG, "Shot " + nextShot + " missed its deadline");
+            ++nextShot;
+            if (isChained() && nextShot < plan.getShotCount()) {
+                timing.scheduledMs[nextShot] = now;
+            }
+        }
+        if (nextShot >= plan.getShotCount()) {
+            finish();
+            return;
+        }
+        if (gate != null && !gate.isOpen(gateOpened)) {
+            waitingForGate = true;
+            return;
+        }
+
+        try {
+            applyOverrides(plan.getOverrides(nextShot));
+            timing.triggeredMs[nextShot] = SystemClock.uptimeMillis();
+            metrics.get(CaptureMetrics.SCHEDULE_DELAY)
+                    .record((timing.triggeredMs[nextShot] - timing.scheduledMs[nextShot]) * 1000);
+            triggeredNs = System.nanoTime();
+            inFlight = true;
+            camera.takePicture(null, null, jpegCallback);
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Error taking picture: " + e.getMessage());
+            inFlight = false;
+            cancelled = true;
+            finish();
+        }
+    }
+
+    private void onDelivered(byte[] data) {
+        if (!isRunning()) {
+            // Picture of an aborted burst
+            return;
+        }
+        int shot = nextShot++;
+        timing.deliveredMs[shot] = SystemClock.uptimeMillis();
+        metrics.get(CaptureMetrics.CAPTURE).recordSince(triggeredNs);
+
+        try {
+            long restartNs = System.nanoTime();
+            camera.startPreview();
+            metrics.get(CaptureMetrics.PREVIEW_RESTART).recordSince(restartNs);
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Error starting preview: " + e.getMessage());
+            cancelled = true;
+        }
+        // Still in flight during onShot, so a cancel() from there leaves finishing to us
+        listener.onShot(shot, data);
+        inFlight = false;
+
+        if (cancelled || nextShot >= plan.getShotCount()) {
+            finish();
+        } else {
+            if (isChained()) {
+                timing.scheduledMs[nextShot] = timing.deliveredMs[shot];
+            }
+            handler.postAtTime(triggerRunnable, timing.scheduledMs[nextShot]);
+        }
+    }
+
+    /** Whether each shot is scheduled by the delivery of the previous one */
+    private boolean isChained() {
+        return plan.getIntervalMs() == BurstPlan.AS_FAST_AS_POSSIBLE;
+    }
+
+    /** Remember the current value of overridden keys so they can be put back after the burst */
+    private void applyOverrides(Map<String, String> overrides) {
+        if (restoreParams == null) {
+            return;
+        }
+        // Keys overridden by an earlier shot but not this one go back to their original value
+        for (Map.Entry<String, String> entry : restoreParams.entrySet()) {
+            if (overrides == null || !overrides.containsKey(entry.getKey())) {
+                settings.set(entry.getKey(), entry.getValue());
+            }
+        }
+        if (overrides != null) {
+            for (Map.Entry<String, String> entry : overrides.entrySet()) {
+                if (!restoreParams.containsKey(entry.getKey())) {
+                    restoreParams.put(entry.getKey(), settings.get(entry.getKey()));
+                }
+                settings.set(entry.getKey(), entry.getValue());
+            }
+        }
+        // Only pushed if a value differs from the previous shot
+        settings.apply();
+    }
+
+    private void finish() {
+        if (restoreParams != null && !restoreParams.isEmpty()) {
+            try {
+                for (Map.Entry<String, String> entry : restoreParams.entrySet()) {
+                    settings.set(entry.getKey(), entry.getValue());
+                }
+                settings.apply();
+            } catch (RuntimeException e) {
+                Log.d(TAG, "Error restoring parameters: " + e.getMessage());
+            }
+        }
+
+        BurstTiming finishedTiming = timing;
+        boolean wasCancelled = cancelled;
+        Listener finishedListener = listener;
+        camera = null;
+        settings = null;
+        plan = null;
+        listener = null;
+        timing = null;
+        restoreParams = null;
+        finishedListener.onBurstFinished(finishedTiming, wasCancelled);
+    }
+}
@@ -0,0 +1,457 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.ImageFormat;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Background stage that writes captured pictures to storage.
+ * <p/>
+ * Picture callbacks hand their byte[] to {@link #submit} and return immediately; no method blocks
+ * the caller. To keep full resolution frames from piling up in memory when storage falls behind,
+ * producers check {@link #hasRoom} before taking the next picture and wait for {@link #whenRoom}
+ * if there is none, e.g. as a {@link BurstScheduler.Gate}.
+ * <p/>
+ * All frames of a burst go into one {@link SessionContainer}, which is closed and announced to the
+ * media scanner on a writer thread once the last frame is written.
+ * <p/>
+ * NV21 frames are compressed on a {@link JpegEncoderPool} as soon as they are submitted, so several
+ * frames compress at once while the writer threads wait on them in queue order. With one writer
+ * thread frames are stored in the order they were submitted.
+ */
+public class BurstWriter {
+    private static final String TAG = "BURST WRITER";
+
+    /** Notified on the main thread once every frame of a burst has been written. */
+    public interface BurstListener {
+        void onBurstSaved(Burst burst);
+    }
+
+    /** Book keeping for one series of pictures. */
+    public static class Burst {
+        private final int id;
+        private final File file;
+        private final BurstListener listener;
+        private SessionContainer container;
+        private boolean openFailed = false;
+        private int pending = 0;
+        private int saved = 0;
+        private int failed = 0;
+        private int untagged = 0;
+        private boolean closed = false;
+        private boolean notified = false;
+
+        private Burst(int id, File file, BurstListener listener) {
+            this.id = id;
+            this.file = file;
+            this.listener = listener;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        /** The session container the frames are written to */
+        public File getFile() {
+            return file;
+        }
+
+        public synchronized int getSavedCount() {
+            return saved;
+        }
+
+        public synchronized int getFailedCount() {
+            return failed;
+        }
+
+        /** Pictures saved without the Exif tags they were submitted with */
+        public synchronized int getUntaggedCount() {
+            return untagged;
+        }
+
+        /** Opened by the first writer thread that needs it, so the main thread does no I/O */
+        private synchronized SessionContainer getContainer() {
+            if (container == null && !openFailed) {
+                try {
+                    container = new SessionContainer(file);
+                } catch (IOException e) {
+                    Log.d(TAG, "Error creating " + file.getName() + ": " + e.getMessage());
+                    openFailed = true;
+                }
+            }
+            return container;
+        }
+    }
+
+    /** One frame waiting to be written */
+    private static class Job {
+        private static final int JPEG = 0;
+        private static final int NV21_TO_JPEG = 1;
+        private static final int NV21_RAW = 2;
+        // Not a frame: close the burst's container once its frames are written
+        private static final int END_BURST = 3;
+
+        private final Burst burst;
+        private final int index;
+        private final int kind;
+        private final byte[] data;
+        private final ExifWriter exif;
+        // Size of NV21 data, 0 for JPEG data
+        private final int width;
+        private final int height;
+        private final long timestampNs;
+        private final long timeMillis;
+        private final float motion;
+        // Compression started at submit time, for NV21_TO_JPEG
+        private JpegEncoderPool.Encoding encoding;
+
+        private Job(Burst burst, int index, int kind, byte[] data, ExifWriter exif, int width, int height,
+                    long timestampNs, long timeMillis, float motion) {
+            this.burst = burst;
+            this.index = index;
+            this.kind = kind;
+            this.data = data;
+            this.exif = exif;
+            this.width = width;
+            this.height = height;
+            this.timestampNs = timestampNs;
+            this.timeMillis = timeMillis;
+            this.motion = motion;
+        }
+    }
+
+    /** Lets the worker hand its buffer to the container without copying it */
+    private static class FrameStream extends ByteArrayOutputStream {
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+
+    private static final Job POISON = new Job(null, 0, Job.JPEG, null, null, 0, 0, 0, 0, 0);
+    private static final int YUV_JPEG_QUALITY = 100;
+
+    private final Context context;
+    private final Handler mainHandler;
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final int queueCapacity;
+    // Frames in the queue, and who to tell once it drops below capacity; guarded by this
+    private int queuedFrames = 0;
+    private Runnable roomListener;
+    private final Thread[] workers;
+    private final JpegEncoderPool encoderPool;
+    private int nextBurstId = 0;
+    private final LatencyHistogram writeLatency = CaptureMetrics.getInstance().get(CaptureMetrics.WRITE);
+
+    /**
+     * @param context       used to notify the media scanner of new files
+     * @param queueCapacity maximum number of frames held in memory waiting for storage
+     * @param threadCount   number of writer threads
+     */
+    public BurstWriter(Context context, int queueCapacity, int threadCount) {
+        this.context = context.getApplicationContext();
+        mainHandler = new Handler(Looper.getMainLooper());
+        this.queueCapacity = queueCapacity;
+        int encoderCount = Runtime.getRuntime().availableProcessors();
+        // Enough buffers for every queued frame, the frames being written and one per encoder
+        encoderPool = new JpegEncoderPool(encoderCount, queueCapacity + threadCount + encoderCount,
+                YUV_JPEG_QUALITY);
+        workers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    drain(new FrameStream());
+                }
+            }, "BurstWriter-" + i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Start a new burst. Frames of the burst are passed to {@link #submit}.
+     *
+     * @param file session container the frames are written to
+     */
+    public synchronized Burst beginBurst(File file, BurstListener listener) {
+        return new Burst(nextBurstId++, file, listener);
+    }
+
+    /** Whether fewer than queueCapacity frames are waiting for storage */
+    public synchronized boolean hasRoom() {
+        return queuedFrames < queueCapacity;
+    }
+
+    /**
+     * Run {@code listener} on the main thread once {@link #hasRoom} is true, soon if it already is.
+     * Only the latest listener is kept.
+     */
+    public synchronized void whenRoom(Runnable listener) {
+        if (queuedFrames < queueCapacity) {
+            roomListener = null;
+            mainHandler.post(listener);
+        } else {
+            roomListener = listener;
+        }
+    }
+
+    /**
+     * Queue a frame for writing.
+     *
+     * @param index shot number within the burst
+     * @param exif   tags to add to the JPEG as it is written, or null to write the data as is
+     * @param motion scene motion when the frame was taken, see {@link MotionDetector}; NaN if unknown
+     */
+    public void submit(Burst burst, int index, byte[] data, ExifWriter exif, long timestampNs,
+                          long timeMillis, float motion) {
+        enqueue(new Job(burst, index, Job.JPEG, data, exif, 0, 0, timestampNs, timeMillis, motion));
+    }
+
+    /**
+     * Queue an NV21 frame, e.g. from the preview, to be compressed to JPEG and written. Compression
+     * starts right away.
+     */
+    public void submitYuv(Burst burst, int index, byte[] nv21, int width, int height, ExifWriter exif,
+                             long timestampNs, long timeMillis, float motion) {
+        Job job = new Job(burst, index, Job.NV21_TO_JPEG, nv21, exif, width, height, timestampNs,
+                timeMillis, motion);
+        job.encoding = encoderPool.encode(nv21, width, height);
+        enqueue(job);
+    }
+
+    /**
+     * Queue an NV21 frame to be written without any encoding, see {@link RawFrameRecord}.
+     */
+    public void submitRaw(Burst burst, int index, byte[] nv21, int width, int height, long timestampNs,
+                             long timeMillis, float motion) {
+        enqueue(new Job(burst, index, Job.NV21_RAW, nv21, null, width, height, timestampNs,
+                timeMillis, motion));
+    }
+
+    private void enqueue(Job job) {
+        Burst burst = job.burst;
+        synchronized (burst) {
+            ++burst.pending;
+        }
+        synchronized (this) {
+            ++queuedFrames;
+        }
+        queue.add(job);
+    }
+
+    /**
+     * No more frames will be submitted for this burst; the listener fires once they are written.
+     * Does not block, the container is closed on a writer thread.
+     */
+    public void endBurst(Burst burst) {
+        synchronized (burst) {
+            burst.closed = true;
+        }
+        // Whichever comes last of this and the burst's last frame closes the container
+        queue.add(new Job(burst, 0, Job.END_BURST, null, null, 0, 0, 0, 0, 0));
+    }
+
+    /** Write out everything already queued, then stop the writer and encoder threads. Does not block. */
+    public void shutdown() {
+        // Queued frames already have their compression queued ahead of the encoder shutdown
+        encoderPool.shutdown();
+        for (int i = 0; i < workers.length; ++i) {
+            queue.add(POISON);
+        }
+    }
+
+    /** The stream is reused by this thread to add Exif tags */
+    private void drain(FrameStream exifStream) {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == POISON) {
+                return;
+            }
+            if (job.kind == Job.END_BURST) {
+                notifyIfFinished(job.burst);
+                continue;
+            }
+            frameTaken();
+            long startNs = System.nanoTime();
+            boolean written = job.kind == Job.NV21_TO_JPEG ?
+                    writeEncoded(job, exifStream) : write(job, exifStream);
+            writeLatency.recordSince(startNs);
+            frameDone(job.burst, written);
+        }
+    }
+
+    private boolean write(Job job, FrameStream exifStream) {
+        SessionContainer container = job.burst.getContainer();
+        if (container == null) {
+            return false;
+        }
+        try {
+            if (job.kind == Job.NV21_RAW) {
+                int length = Math.min(job.data.length, Nv21.frameSize(job.width, job.height));
+                container.appendRaw(job.index, job.data, length, ImageFormat.NV21, job.width, job.height,
+                        job.timestampNs, job.timeMillis, job.motion);
+                return true;
+            }
+
+            appendJpeg(container, job, job.data, job.data.length, exifStream);
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Error writing frame " + job.index + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    /** Wait for the frame's compression and write the result, the buffer goes back to the pool */
+    private boolean writeEncoded(Job job, FrameStream exifStream) {
+        JpegEncoderPool.Encoding encoding = job.encoding;
+        try {
+            if (!encoding.await()) {
+                Log.d(TAG, "Error compressing frame " + job.index);
+                return false;
+            }
+            SessionContainer container = job.burst.getContainer();
+            if (container == null) {
+                return false;
+            }
+            appendJpeg(container, job, encoding.getData(), encoding.getLength(), exifStream);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.d(TAG, "Interrupted while compressing frame " + job.index);
+        } catch (IOException e) {
+            Log.d(TAG, "Error writing frame " + job.index + ": " + e.getMessage());
+        } finally {
+            encoding.release();
+        }
+        return false;
+    }
+
+    private static void appendJpeg(SessionContainer container, Job job, byte[] jpeg, int length,
+                                   FrameStream exifStream) throws IOException {
+        if (job.exif != null) {
+            exifStream.reset();
+            if (!job.exif.writeTo(exifStream, jpeg, length)) {
+                synchronized (job.burst) {
+                    ++job.burst.untagged;
+                }
+            }
+            container.appendJpeg(job.index, exifStream.buffer(), exifStream.size(), job.timestampNs,
+                    job.timeMillis, job.motion);
+        } else {
+            container.appendJpeg(job.index, jpeg, length, job.timestampNs, job.timeMillis, job.motion);
+        }
+    }
+
+    private void frameTaken() {
+        Runnable listener = null;
+        synchronized (this) {
+            --queuedFrames;
+            if (queuedFrames < queueCapacity && roomListener != null) {
+                listener = roomListener;
+                roomListener = null;
+            }
+        }
+        if (listener != null) {
+            mainHandler.post(listener);
+        }
+    }
+
+    private void frameDone(Burst burst, boolean success) {
+        synchronized (burst) {
+            --burst.pending;
+            if (success) {
+                ++burst.saved;
+            } else {
+                ++burst.failed;
+            }
+        }
+        notifyIfFinished(burst);
+    }
+
+    private void notifyIfFinished(final Burst burst) {
+        SessionContainer container;
+        synchronized (burst) {
+            if (!burst.closed || burst.pending > 0 || burst.notified) {
+                return;
+            }
+            burst.notified = true;
+            container = burst.container;
+        }
+        if (container != null) {
+            try {
+                container.close();
+                // One broadcast for the whole session
+                context.sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE,
+                        Uri.fromFile(container.getFile())));
+            } catch (IOException e) {
+                Log.d(TAG, "Error closing " + container.getFile().getName() + ": " + e.getMessage());
+            }
+        }
+        if (burst.listener != null) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    burst.listener.onBurstSaved(burst);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Dark frame and flat field references for correcting stacked frames.
+ * <p/>
+ * A dark frame, taken with the lens covered, holds the sensor offset of every pixel; a flat field,
+ * taken of an evenly lit white target, holds the vignetting and pixel response. A frame is
+ * corrected as (value - dark) * gain with gain = (flat mean - dark mean) / (flat - dark) per pixel
+ * and channel, which evens out the response while keeping the overall level. Either reference may
+ * be missing, the correction then does what it can with the other.
+ * <p/>
+ * References are files of {@link #HEADER_SIZE} bytes of header, little endian: {@link #MAGIC},
+ * width, height, then the mean of each channel as floats, followed by width * height * 3 floats in
+ * R, G, B order per pixel. They are only mapped, not read, on the first correction after they
+ * change, so creating a Calibration costs nothing and reading them costs no copy.
+ * <p/>
+ * Not thread safe, except that {@link #correct} and {@link #gain} may be called from several
+ * threads once {@link #prepare} has returned.
+ */
+public class Calibration {
+    private static final String TAG = "CALIBRATION";
+
+    public static final int MAGIC = 0x314c4143; // "CAL1"
+    public static final int HEADER_SIZE = 24;
+    public static final int DARK = 0;
+    public static final int FLAT = 1;
+    private static final int CHANNELS = 3;
+    /** Flat field signal below this is treated as a dead pixel and left uncorrected */
+    private static final float MIN_FLAT_SIGNAL = 1f;
+
+    private final File[] files = new File[2];
+    private final FloatBuffer[] frames = new FloatBuffer[2];
+    private final float[][] means = new float[2][CHANNELS];
+    private final int[] widths = new int[2];
+    private final int[] heights = new int[2];
+    private final boolean[] mapped = new boolean[2];
+
+    // References matching the frame being corrected, set by prepare()
+    private FloatBuffer dark;
+    private FloatBuffer flat;
+    private final float[] levels = new float[CHANNELS];
+
+    /** @param dir where the references are kept */
+    public Calibration(File dir) {
+        files[DARK] = new File(dir, "dark.cal");
+        files[FLAT] = new File(dir, "flat.cal");
+    }
+
+    public File getFile(int kind) {
+        return files[kind];
+    }
+
+    public boolean has(int kind) {
+        return files[kind].exists();
+    }
+
+    /**
+     * Save a reference from per pixel channel sums of {@code count} frames, as kept by
+     * {@link FrameStacker}. Replaces the previous reference of this kind.
+     */
+    public void record(int kind, int width, int height, int[] sum, int count) throws IOException {
+        long[] channelSums = new long[CHANNELS];
+        for (int j = 0; j < width * height * CHANNELS; ++j) {
+            channelSums[j % CHANNELS] += sum[j];
+        }
+
+        int length = HEADER_SIZE + width * height * CHANNELS * 4;
+        RandomAccessFile raf = new RandomAccessFile(files[kind], "rw");
+        try {
+            raf.setLength(length);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            map.putInt(MAGIC).putInt(width).putInt(height);
+            for (long channelSum : channelSums) {
+                map.putFloat((float) ((double) channelSum / count / width / height));
+            }
+            FloatBuffer values = map.asFloatBuffer();
+            float n = count;
+            for (int j = 0; j < width * height * CHANNELS; ++j) {
+                values.put(sum[j] / n);
+            }
+        } finally {
+            raf.close();
+        }
+        // Map the new file on the next correction
+        frames[kind] = null;
+        mapped[kind] = false;
+    }
+
+    /** Forget a reference */
+    public void delete(int kind) {
+        if (files[kind].exists() && !files[kind].delete()) {
+            Log.d(TAG, "Error deleting " + files[kind].getName());
+        }
+        frames[kind] = null;
+        mapped[kind] = false;
+    }
+
+    /**
+     * Map the references if needed and select those of the given frame size.
+     *
+     * @return false if there is no reference for frames of this size
+     */
+    public boolean prepare(int width, int height) {
+        dark = load(DARK, width, height);
+        flat = load(FLAT, width, height);
+        for (int c = 0; c < CHANNELS; ++c) {
+            levels[c] = flat == null ? 0 : means[FLAT][c] - (dark == null ? 0 : means[DARK][c]);
+        }
+        return dark != null || flat != null;
+    }
+
+    /**
+     * Corrected value of element {@code j} of a frame laid out like the references, i.e. channel
+     * {@code j % 3} of pixel {@code j / 3}
+     */
+    public float correct(int j, float value) {
+        float offset = dark == null ? 0 : dark.get(j);
+        return (value - offset) * gain(j);
+    }
+
+    /** Factor applied after the dark frame is subtracted, variances scale by its square */
+    public float gain(int j) {
+        if (flat == null) {
+            return 1;
+        }
+        float signal = flat.get(j) - (dark == null ? 0 : dark.get(j));
+        return signal < MIN_FLAT_SIGNAL ? 1 : levels[j % CHANNELS] / signal;
+    }
+
+    private FloatBuffer load(int kind, int width, int height) {
+        if (!mapped[kind]) {
+            mapped[kind] = true;
+            frames[kind] = map(kind);
+        }
+        return frames[kind] != null && widths[kind] == width && heights[kind] == height ? frames[kind] : null;
+    }
+
+    private FloatBuffer map(int kind) {
+        File file = files[kind];
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long size = channel.size();
+                if (size < HEADER_SIZE) {
+                    throw new IOException("Not a calibration file");
+                }
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                int width = map.getInt(4);
+                int height = map.getInt(8);
+                if (map.getInt(0) != MAGIC || size != HEADER_SIZE + (long) width * height * CHANNELS * 4) {
+                    throw new IOException("Not a calibration file");
+                }
+                widths[kind] = width;
+                heights[kind] = height;
+                for (int c = 0; c < CHANNELS; ++c) {
+                    means[kind][c] = map.getFloat(12 + 4 * c);
+                }
+                map.position(HEADER_SIZE);
+                return map.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Error mapping " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -44,21 +44,27 @@ package uiuc.bioassay.camera;
 
 import android.app.Activity;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.location.Location;
-import android.media.ExifInterface;
-import android.media.MediaActionSound;
 import android.net.Uri;
+import android.media.MediaActionSound;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.Surface;
 import android.view.View;
+import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.FrameLayout;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -68,8 +74,6 @@ import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationServices;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -82,49 +86,633 @@ public class CameraActivity extends AppCompatActivity implements
     private static final int MAX_PICTURE = 5;
 
     private Camera mCamera;
+    private CameraSettings cameraSettings;
+    private CameraOpener cameraOpener;
+    private boolean cameraOpening = false;
+    private boolean paused = false;
     private CameraPreview mPreview;
     private FrameLayout preview;
     private Button buttonCapture;
+    private TouchRectView touchRectView;
 
-    private int picCount = 0;
     private StartPictureSeriesSound startSeriesSound = new StartPictureSeriesSound();
     private StopPictureSeriesSound stopSeriesSound = new StopPictureSeriesSound();
-    private Camera.PictureCallback mPicture = new Camera.PictureCallback() {
+
+    // Pictures are written to storage in the background so the next shot does not wait on disk
+    private static final int WRITER_QUEUE_CAPACITY = 3;
+    private BurstWriter burstWriter;
+    private BurstWriter.Burst currentBurst;
+    private BurstWriter.BurstListener burstSavedListener = new BurstWriter.BurstListener() {
+        @Override
+        public void onBurstSaved(BurstWriter.Burst burst) {
+            Log.d(TAG, "Burst " + burst.getId() + " saved " + burst.getSavedCount() + " pictures to " +
+                    burst.getFile().getName());
+            if (burst.getFailedCount() > 0) {
+                Toast.makeText(CameraActivity.this, "Failed to save " + burst.getFailedCount() + " pictures",
+                        Toast.LENGTH_LONG).show();
+            } else if (burst.getUntaggedCount() > 0) {
+                Toast.makeText(CameraActivity.this,
+                        burst.getUntaggedCount() + " pictures saved without Exif tags", Toast.LENGTH_LONG).show();
+            }
+        }
+    };
+
+    private BurstPlan burstPlan = new BurstPlan.Builder()
+            .setShotCount(MAX_PICTURE)
+            .setIntervalMs(BurstPlan.AS_FAST_AS_POSSIBLE)
+            .build();
+    private BurstScheduler burstScheduler;
+    private BurstScheduler.Listener burstListener = new BurstScheduler.Listener() {
+        @Override
+        public void onShot(int shot, byte[] data) {
+            // Hand the picture off to the writer, the scheduler's gate holds off the next shot
+            // if storage has fallen behind.
+            // Location and time tags are added while writing instead of rewriting the file later.
+            long now = System.currentTimeMillis();
+            long nowNs = System.nanoTime();
+            ExifWriter exif = new ExifWriter(mCurrentLocation, now, shot);
+            float motion = motionAt(nowNs);
+            burstWriter.submit(currentBurst, shot, data, exif, nowNs, now, motion);
+            if (stacking) {
+                frameStacker.addJpeg(data);
+            }
+            if (merging) {
+                hdrMerger.addJpeg(data, bracketExposures[shot]);
+            }
+            if (motion > MOTION_ABORT_THRESHOLD) {
+                Log.d(TAG, "Motion " + motion + " at shot " + shot + ", cancelling burst");
+                Toast.makeText(CameraActivity.this, "Camera moved, burst stopped", Toast.LENGTH_SHORT).show();
+                burstScheduler.cancel();
+            }
+        }
+
+        @Override
+        public void onBurstFinished(BurstScheduler.BurstTiming timing, boolean cancelled) {
+            for (int i = 0; i < timing.getShotCount(); ++i) {
+                Log.d(TAG, "Shot " + i + ": jitter " + timing.getJitterMs(i) + " ms, delivered after " +
+                        (timing.deliveredMs[i] - timing.triggeredMs[i]) + " ms");
+            }
+            burstWriter.endBurst(currentBurst);
+            currentBurst = null;
+            if (stacking) {
+                frameStacker.finish();
+                stacking = false;
+            }
+            if (merging) {
+                hdrMerger.finish();
+                merging = false;
+            }
+            stopSeriesSound.play();
+            buttonCapture.setEnabled(true);
+            startLocationUpdates();
+        }
+    };
+
+    // Live preview frames for on-device analysis
+    private static final int PREVIEW_BUFFER_COUNT = 3;
+    // Analysis gets previews of up to this many pixels even where the screen needs fewer
+    private static final int ANALYSIS_PIXEL_BUDGET = 1280 * 960;
+    private PreviewProcessor previewProcessor;
+
+    // Zero shutter lag: bursts come from the most recent preview frames instead of takePicture
+    private static final int ZSL_FRAME_COUNT = 8;
+    private ZslRingBuffer zslRing = null;
+    private boolean zeroShutterLag = false;
+
+    // Raw capture: preview frames are saved unencoded, so the ring is kept whenever it is on
+    private boolean rawCapture = false;
+
+    // Frames of a burst averaged on the device, JPEGs decoded at 1/STACK_SAMPLE_SIZE resolution
+    private static final int STACK_SAMPLE_SIZE = 2;
+    private FrameStacker frameStacker = null;
+    private boolean stackFrames = false;
+    // Whether the burst being taken is stacked, as a result or as a calibration reference
+    private boolean stacking = false;
+    private FrameStacker.Listener stackSavedListener = new FrameStacker.Listener() {
+        @Override
+        public void onStackSaved(File meanFile, File previewFile, File varianceFile, int frameCount) {
+            if (meanFile == null) {
+                Toast.makeText(CameraActivity.this, "Failed to save stacked frames", Toast.LENGTH_LONG).show();
+                return;
+            }
+            Log.d(TAG, "Stacked " + frameCount + " frames into " + meanFile.getName());
+            sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(meanFile)));
+            if (previewFile != null) {
+                sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(previewFile)));
+            }
+        }
+    };
+
+    // Exposure bracketed bursts merged into one linear radiance image. Not with zero shutter lag,
+    // preview frames all have the same exposure.
+    private static final int HDR_SAMPLE_SIZE = 2;
+    private static final int BRACKET_SHOT_COUNT = 5;
+    // Auto exposure is unlocked for the bracket, give it time to settle on each compensation
+    private static final long BRACKET_INTERVAL_MS = 600;
+    private HdrMerger hdrMerger = null;
+    private boolean hdrBracket = false;
+    // Whether the burst being taken is merged, and the relative exposure of each of its shots
+    private boolean merging = false;
+    private float[] bracketExposures;
+    private HdrMerger.Listener mergeSavedListener = new HdrMerger.Listener() {
+        @Override
+        public void onMergeSaved(File file, int frameCount) {
+            if (file == null) {
+                Toast.makeText(CameraActivity.this, "Failed to save merged frames", Toast.LENGTH_LONG).show();
+                return;
+            }
+            Log.d(TAG, "Merged " + frameCount + " exposures into " + file.getName());
+            sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
+        }
+    };
+
+    // Dark frame and flat field references, stacks are corrected with them once recorded. The next
+    // burst after choosing to record one is stacked into the reference.
+    private Calibration calibration;
+    private int pendingReference = -1;
+
+    // Colour correction fitted from a grey patch selected as the ROI, applied to stacks
+    private static final String COLOR_PREFS_NAME = "color_correction";
+    private SharedPreferences colorPrefs;
+    private ColorCorrection colorCorrection;
+    private FrameStacker.Listener referenceSavedListener = new FrameStacker.Listener() {
+        @Override
+        public void onStackSaved(File meanFile, File previewFile, File varianceFile, int frameCount) {
+            if (meanFile == null) {
+                Toast.makeText(CameraActivity.this, "Failed to record reference", Toast.LENGTH_LONG).show();
+                return;
+            }
+            Log.d(TAG, "Recorded " + meanFile.getName() + " from " + frameCount + " frames");
+            Toast.makeText(CameraActivity.this, "Reference recorded", Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    // Live measurement of the region of interest selected by tapping the preview
+    private RoiAnalyzer roiAnalyzer = null;
+    private RectF selectedRoi = null;
+    private Rect selectedRoiView = null;
+    private TextView roiReadout;
+    private final RoiAnalyzer.RoiStats latestRoiStats = new RoiAnalyzer.RoiStats();
+    private boolean roiReadoutPosted = false;
+    private final StringBuilder roiText = new StringBuilder();
+
+    // Auto capture: a burst starts once the preview has been sharp for SHARP_FRAME_COUNT frames
+    private static final float SHARPNESS_THRESHOLD = 80f;
+    private static final int SHARP_FRAME_COUNT = 5;
+    private SharpnessAnalyzer sharpnessAnalyzer = null;
+    private TextView sharpnessReadout;
+    private final StringBuilder sharpnessText = new StringBuilder();
+    private final Object sharpnessLock = new Object();
+    private float latestSharpness;
+    private boolean sharpnessReadoutPosted = false;
+
+    private SharpnessAnalyzer.Listener sharpnessListener = new SharpnessAnalyzer.Listener() {
+        @Override
+        public void onSharpness(SharpnessAnalyzer analyzer, float score, long timestampNs) {
+            // Called for every preview frame, only post to the UI if the last update was shown
+            synchronized (sharpnessLock) {
+                latestSharpness = score;
+                if (sharpnessReadoutPosted) {
+                    return;
+                }
+                sharpnessReadoutPosted = true;
+            }
+            sharpnessReadout.post(showSharpness);
+        }
+
+        @Override
+        public void onSharp(SharpnessAnalyzer analyzer, float score, long timestampNs) {
+            buttonCapture.post(autoCapture);
+        }
+    };
+
+    private final Runnable showSharpness = new Runnable() {
+        @Override
+        public void run() {
+            float score;
+            synchronized (sharpnessLock) {
+                sharpnessReadoutPosted = false;
+                score = latestSharpness;
+            }
+            sharpnessText.setLength(0);
+            sharpnessText.append("Sharpness ").append(Math.round(score)).append(" / ")
+                    .append(Math.round(SHARPNESS_THRESHOLD));
+            sharpnessReadout.setText(sharpnessText);
+        }
+    };
+
+    private final Runnable autoCapture = new Runnable() {
+        @Override
+        public void run() {
+            // Ignored while a burst is still running or auto capture was turned off meanwhile
+            if (sharpnessAnalyzer != null && buttonCapture.isEnabled()) {
+                Log.d(TAG, "Preview sharp, starting burst");
+                buttonCapture.performClick();
+            }
+        }
+    };
+
+    // Hold still: a capture waits until the preview has been steady for SETTLE_FRAMES frames, and
+    // a burst stops if the camera moves. Motion is the mean luma change between preview frames.
+    private static final float MOTION_THRESHOLD = 2f;
+    private static final float MOTION_ABORT_THRESHOLD = 8f;
+    private static final int SETTLE_FRAMES = 5;
+    private static final long SETTLE_TIMEOUT_MS = 3000;
+    private MotionDetector motionDetector = null;
+
+    private MotionDetector.StableCallback stableCallback = new MotionDetector.StableCallback() {
+        @Override
+        public void onStable() {
+            buttonCapture.setText("Capture");
+            buttonCapture.setEnabled(true);
+            startCapture();
+        }
+
+        @Override
+        public void onTimeout() {
+            buttonCapture.setText("Capture");
+            buttonCapture.setEnabled(true);
+            Toast.makeText(CameraActivity.this, "Camera did not hold still, try again", Toast.LENGTH_SHORT)
+                    .show();
+        }
+    };
+
+    // Spectrum mode: the capture button saves the intensity profile along the selected strip
+    private static final int SPECTRUM_AVERAGING = 8;
+    private SpectrumExtractor spectrumExtractor = null;
+    private TextView spectrumReadout;
+    private final SpectrumExtractor.Spectrum latestSpectrum = new SpectrumExtractor.Spectrum();
+    private boolean spectrumReadoutPosted = false;
+    private final StringBuilder spectrumText = new StringBuilder();
+
+    private SpectrumExtractor.Listener spectrumListener = new SpectrumExtractor.Listener() {
+        @Override
+        public void onSpectrum(SpectrumExtractor extractor, SpectrumExtractor.Spectrum spectrum) {
+            // Called for every preview frame, only post to the UI if the last update was shown
+            synchronized (latestSpectrum) {
+                latestSpectrum.set(spectrum);
+                if (spectrumReadoutPosted) {
+                    return;
+                }
+                spectrumReadoutPosted = true;
+            }
+            spectrumReadout.post(showSpectrum);
+        }
+    };
+
+    private final Runnable showSpectrum = new Runnable() {
+        @Override
+        public void run() {
+            spectrumText.setLength(0);
+            synchronized (latestSpectrum) {
+                spectrumReadoutPosted = false;
+                int peak = 0;
+                for (int i = 1; i < latestSpectrum.length; ++i) {
+                    if (latestSpectrum.values[i] > latestSpectrum.values[peak]) {
+                        peak = i;
+                    }
+                }
+                spectrumText.append(latestSpectrum.length).append(" px along ")
+                        .append(latestSpectrum.horizontal ? 'x' : 'y');
+                if (latestSpectrum.length > 0) {
+                    spectrumText.append("\npeak at ").append(latestSpectrum.start + peak)
+                            .append(": ").append(Math.round(latestSpectrum.values[peak] * 10) / 10f);
+                }
+            }
+            spectrumReadout.setText(spectrumText);
+        }
+    };
+
+    // Histogram overlay: per channel levels of every preview frame and how much of it is clipped
+    /** Clipped fraction above which the readout turns red */
+    private static final float CLIP_WARNING = 0.001f;
+    private HistogramAnalyzer histogramAnalyzer = null;
+    private HistogramView histogramView;
+    private TextView histogramReadout;
+    private final HistogramAnalyzer.Histogram latestHistogram = new HistogramAnalyzer.Histogram();
+    private boolean histogramPosted = false;
+    private final StringBuilder histogramText = new StringBuilder();
+
+    private HistogramAnalyzer.Listener histogramListener = new HistogramAnalyzer.Listener() {
+        @Override
+        public void onHistogram(HistogramAnalyzer analyzer, HistogramAnalyzer.Histogram histogram) {
+            // Called for every preview frame, only post to the UI if the last update was shown
+            synchronized (latestHistogram) {
+                latestHistogram.set(histogram);
+                if (histogramPosted) {
+                    return;
+                }
+                histogramPosted = true;
+            }
+            histogramView.post(showHistogram);
+        }
+    };
+
+    private final Runnable showHistogram = new Runnable() {
+        @Override
+        public void run() {
+            if (histogramAnalyzer == null) {
+                return;
+            }
+            histogramText.setLength(0);
+            boolean clipping = false;
+            synchronized (latestHistogram) {
+                histogramPosted = false;
+                histogramView.setHistogram(latestHistogram);
+                histogramText.append("clip");
+                for (int c = HistogramAnalyzer.RED; c <= HistogramAnalyzer.BLUE; ++c) {
+                    float clipped = latestHistogram.clippedFraction(c);
+                    clipping |= clipped > CLIP_WARNING;
+                    histogramText.append(' ').append("RGB".charAt(c)).append(' ')
+                            .append(Math.round(clipped * 1000) / 10f).append('%');
+                }
+            }
+            histogramReadout.setText(histogramText);
+            histogramReadout.setTextColor(clipping ? 0xffff5252 : 0xffffffff);
+        }
+    };
+
+    // Kinetics run: ROI readings every few seconds appended to a CSV for the length of an assay
+    private static final long KINETICS_INTERVAL_MS = 5000;
+    private static final long KINETICS_DURATION_MS = 30 * 60 * 1000;
+    private volatile KineticsRecorder kineticsRecorder = null;
+    private MenuItem kineticsItem;
+    private TextView kineticsReadout;
+    private final KineticsRecorder.Curve latestCurve = new KineticsRecorder.Curve();
+    private boolean kineticsReadoutPosted = false;
+    private final StringBuilder kineticsText = new StringBuilder();
+
+    private KineticsRecorder.Listener kineticsListener = new KineticsRecorder.Listener() {
         @Override
-        public void onPictureTaken(byte[] data, Camera camera) {
+        public void onTick(KineticsRecorder recorder, KineticsRecorder.Curve curve) {
+            synchronized (latestCurve) {
+                latestCurve.set(curve);
+                if (kineticsReadoutPosted) {
+                    return;
+                }
+                kineticsReadoutPosted = true;
+            }
+            kineticsReadout.post(showCurve);
+        }
+
+        @Override
+        public void onFinished(KineticsRecorder recorder, File file, IOException error) {
+            if (kineticsRecorder == recorder) {
+                endKinetics();
+            }
+            if (error != null) {
+                Toast.makeText(CameraActivity.this, "Failed to save kinetics: " + error.getMessage(),
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+            sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
+            Toast.makeText(CameraActivity.this, "Kinetics saved to " + file.getName(), Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    private final Runnable showCurve = new Runnable() {
+        @Override
+        public void run() {
+            kineticsText.setLength(0);
+            synchronized (latestCurve) {
+                kineticsReadoutPosted = false;
+                kineticsText.append("tick ").append(latestCurve.tickCount)
+                        .append(" at ").append(Math.round(latestCurve.elapsedS)).append(" s");
+                for (int c = 0; c < 3; ++c) {
+                    kineticsText.append('\n').append("RGB".charAt(c))
+                            .append(' ').append(Math.round(latestCurve.latest[c] * 10) / 10f)
+                            .append(" rate ").append(Math.round(latestCurve.slopePerMin[c] * 100) / 100f)
+                            .append("/min");
+                }
+            }
+            kineticsReadout.setText(kineticsText);
+        }
+    };
+
+    // Debug overlay of capture stage latencies, refreshed while it is shown
+    private static final long METRICS_REFRESH_MS = 500;
+    private TextView metricsOverlay;
+    private final StringBuilder metricsText = new StringBuilder();
+    private final Runnable showMetrics = new Runnable() {
+        @Override
+        public void run() {
+            metricsText.setLength(0);
+            CaptureMetrics.getInstance().format(metricsText);
+            metricsOverlay.setText(metricsText);
+            metricsOverlay.postDelayed(this, METRICS_REFRESH_MS);
+        }
+    };
+
+    // Automatic ROI: the largest region found in the preview is selected as if it had been tapped
+    private static final int AUTO_ROI_STABLE_FRAMES = 5;
+    private RegionDetector regionDetector = null;
+    private TextView detectionReadout;
+    private final RegionDetector.Detection latestDetection = new RegionDetector.Detection();
+    private boolean detectionPosted = false;
+    private final StringBuilder detectionText = new StringBuilder();
+    // All detected regions are outlined; with ROI measuring on each is labelled with its mean level
+    private final RegionDetector.Detection measuredRegions = new RegionDetector.Detection();
+    private final RoiAnalyzer.RoiStats regionStats = new RoiAnalyzer.RoiStats();
+    private final float[] regionValues = new float[RegionDetector.MAX_REGIONS];
+    private final float[] measuredValues = new float[RegionDetector.MAX_REGIONS];
+    private int regionValueCount = 0;
+    private boolean regionValuesPosted = false;
+    private final float[] regionViewLeft = new float[RegionDetector.MAX_REGIONS];
+    private final float[] regionViewTop = new float[RegionDetector.MAX_REGIONS];
+    private final float[] regionViewRight = new float[RegionDetector.MAX_REGIONS];
+    private final float[] regionViewBottom = new float[RegionDetector.MAX_REGIONS];
+    private final Rect regionViewRect = new Rect();
+    private final RectF regionFrameRect = new RectF();
+
+    private RegionDetector.Listener regionListener = new RegionDetector.Listener() {
+        @Override
+        public void onRegions(RegionDetector detector, RegionDetector.Detection detection) {
+            synchronized (latestDetection) {
+                latestDetection.set(detection);
+                if (detectionPosted) {
+                    return;
+                }
+                detectionPosted = true;
+            }
+            detectionReadout.post(applyDetection);
+        }
+    };
+
+    private final Runnable applyDetection = new Runnable() {
+        private final RectF normalized = new RectF();
+        private final Rect viewRect = new Rect();
+
+        @Override
+        public void run() {
+            detectionText.setLength(0);
+            int largest;
+            synchronized (latestDetection) {
+                detectionPosted = false;
+                largest = latestDetection.largest;
+                if (largest >= 0) {
+                    normalized.set(latestDetection.left[largest], latestDetection.top[largest],
+                            latestDetection.right[largest], latestDetection.bottom[largest]);
+                }
+                detectionText.append(latestDetection.count).append(" regions");
+                switch (latestDetection.layout) {
+                    case RegionDetector.LAYOUT_STRIP:
+                        detectionText.append(", strip");
+                        break;
+                    case RegionDetector.LAYOUT_PLATE:
+                        detectionText.append(", plate ").append(latestDetection.rows).append('x')
+                                .append(latestDetection.columns);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            detectionReadout.setText(detectionText);
+            showRegions();
+            // The region stays put during a kinetics run
+            if (largest < 0 || mPreview == null || regionDetector == null || kineticsRecorder != null) {
+                return;
+            }
+            // Selected like a tap, which also focuses and meters there
+            mPreview.mapFrameToView(normalized, viewRect);
+            roiSelectedListener.onRoiSelected(viewRect, normalized);
+            mPreview.focusOn(normalized);
+        }
+    };
+
+    private final Runnable showRegionValues = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (regionValues) {
+                regionValuesPosted = false;
+                for (int i = 0; i < regionValueCount; ++i) {
+                    touchRectView.setRegionValue(i, regionValues[i]);
+                }
+            }
+        }
+    };
+
+    /** Outline the latest detected regions, and measure them from the next frame on */
+    private void showRegions() {
+        if (mPreview == null || regionDetector == null) {
+            return;
+        }
+        Rect viewRect = regionViewRect;
+        RectF frameRect = regionFrameRect;
+        int count;
+        synchronized (measuredRegions) {
+            synchronized (latestDetection) {
+                measuredRegions.set(latestDetection);
+            }
+            count = measuredRegions.count;
+            for (int i = 0; i < count; ++i) {
+                frameRect.set(measuredRegions.left[i], measuredRegions.top[i],
+                        measuredRegions.right[i], measuredRegions.bottom[i]);
+                mPreview.mapFrameToView(frameRect, viewRect);
+                regionViewLeft[i] = viewRect.left;
+                regionViewTop[i] = viewRect.top;
+                regionViewRight[i] = viewRect.right;
+                regionViewBottom[i] = viewRect.bottom;
+            }
+        }
+        touchRectView.setRegions(count, regionViewLeft, regionViewTop, regionViewRight, regionViewBottom);
+    }
 
-            File pictureFile = getOutputImageFile(picCount);
-            if (pictureFile == null){
-                Log.d(TAG, "Error creating media file, check storage permissions: ");
+    /** Mean level of every detected region in the current frame, on the processor thread */
+    private void measureRegions(RoiAnalyzer analyzer) {
+        int count;
+        synchronized (measuredRegions) {
+            count = measuredRegions.count;
+            for (int i = 0; i < count; ++i) {
+                analyzer.query(measuredRegions.left[i], measuredRegions.top[i],
+                        measuredRegions.right[i], measuredRegions.bottom[i], regionStats);
+                measuredValues[i] = (regionStats.mean[0] + regionStats.mean[1] + regionStats.mean[2]) / 3;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        synchronized (regionValues) {
+            System.arraycopy(measuredValues, 0, regionValues, 0, count);
+            regionValueCount = count;
+            if (regionValuesPosted) {
                 return;
             }
+            regionValuesPosted = true;
+        }
+        touchRectView.post(showRegionValues);
+    }
 
-            try {
-                FileOutputStream fos = new FileOutputStream(pictureFile);
-                fos.write(data);
-                fos.flush();
-                fos.close();
-                sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(pictureFile)));
-
-                // Take more pictures if still
-                ++picCount;
-                camera.startPreview();
-                if (picCount < MAX_PICTURE) {
-                    mCamera.takePicture(null, null,
-                            mPicture);
-                } else {
-                    picCount = 0;
-                    stopSeriesSound.play();
-                    buttonCapture.setEnabled(true);
-                    startLocationUpdates();
+    private CameraPreview.OnRoiSelectedListener roiSelectedListener = new CameraPreview.OnRoiSelectedListener() {
+        @Override
+        public void onRoiSelected(Rect viewRect, RectF normalized) {
+            if (kineticsRecorder != null) {
+                Toast.makeText(CameraActivity.this, "Stop the kinetics run to change the region",
+                        Toast.LENGTH_SHORT).show();
+                return;
+            }
+            // Callers may reuse their rects, keep copies
+            if (selectedRoi == null) {
+                selectedRoi = new RectF();
+                selectedRoiView = new Rect();
+            }
+            selectedRoi.set(normalized);
+            selectedRoiView.set(viewRect);
+            if (sharpnessAnalyzer != null) {
+                sharpnessAnalyzer.setRegion(normalized);
+            }
+            if (spectrumExtractor != null) {
+                spectrumExtractor.setStrip(normalized);
+            }
+            if (roiAnalyzer != null) {
+                roiAnalyzer.setRoi(normalized);
+            }
+            if (roiAnalyzer != null || spectrumExtractor != null) {
+                touchRectView.setRoi(viewRect);
+            }
+        }
+    };
+
+    private RoiAnalyzer.Listener roiStatsListener = new RoiAnalyzer.Listener() {
+        @Override
+        public void onRoiStats(RoiAnalyzer analyzer, RoiAnalyzer.RoiStats stats) {
+            // Called for every preview frame, only post to the UI if the last update was shown
+            KineticsRecorder recorder = kineticsRecorder;
+            if (recorder != null) {
+                recorder.add(stats);
+            }
+            measureRegions(analyzer);
+            synchronized (latestRoiStats) {
+                latestRoiStats.set(stats);
+                if (roiReadoutPosted) {
+                    return;
                 }
-            } catch (FileNotFoundException e) {
-                Log.d(TAG, "File not found: " + e.getMessage());
-            } catch (IOException e) {
-                Log.d(TAG, "Error accessing file: " + e.getMessage());
-            } catch (Exception e) {
-                Log.d(TAG, "Error starting preview: " + e.getMessage());
+                roiReadoutPosted = true;
             }
+            roiReadout.post(showRoiStats);
+        }
+    };
+
+    private final Runnable showRoiStats = new Runnable() {
+        @Override
+        public void run() {
+            roiText.setLength(0);
+            synchronized (latestRoiStats) {
+                roiReadoutPosted = false;
+                appendChannel(roiText, "R", 0);
+                appendChannel(roiText, "G", 1);
+                appendChannel(roiText, "B", 2);
+            }
+            roiReadout.setText(roiText);
+        }
+
+        private void appendChannel(StringBuilder text, String name, int channel) {
+            if (channel > 0) {
+                text.append('\n');
+            }
+            text.append(name)
+                    .append(" mean ").append(Math.round(latestRoiStats.mean[channel] * 10) / 10f)
+                    .append(" med ").append((int) latestRoiStats.median[channel])
+                    .append(" sd ").append(Math.round(latestRoiStats.std[channel] * 10) / 10f);
         }
     };
 
@@ -171,6 +759,25 @@ public class CameraActivity extends AppCompatActivity implements
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_camera);
 
+        burstWriter = new BurstWriter(this, WRITER_QUEUE_CAPACITY, 1);
+        burstScheduler = new BurstScheduler(new Handler());
+        burstScheduler.setGate(new BurstScheduler.Gate() {
+            @Override
+            public boolean isOpen(Runnable onOpen) {
+                if (burstWriter.hasRoom()) {
+                    return true;
+                }
+                burstWriter.whenRoom(onOpen);
+                return false;
+            }
+        });
+        previewProcessor = new PreviewProcessor(PREVIEW_BUFFER_COUNT);
+        cameraOpener = new CameraOpener(this);
+        // Only file names, the references are mapped by the stacker when first needed
+        calibration = new Calibration(getFilesDir());
+        colorPrefs = getSharedPreferences(COLOR_PREFS_NAME, MODE_PRIVATE);
+        colorCorrection = ColorCorrection.load(colorPrefs);
+
         // Open camera
         openCamera(Camera.CameraInfo.CAMERA_FACING_BACK);
 
@@ -180,16 +787,30 @@ public class CameraActivity extends AppCompatActivity implements
                 new View.OnClickListener() {
                     @Override
                     public void onClick(View v) {
-                        stopLocationUpdates();
-                        buttonCapture.setEnabled(false);
-                        startSeriesSound.play();
-                        mCamera.takePicture(null, null, mPicture);
+                        if (zslRing == null && mCamera == null) {
+                            // Still opening
+                            return;
+                        }
+                        if (motionDetector != null) {
+                            buttonCapture.setEnabled(false);
+                            buttonCapture.setText("Hold still");
+                            motionDetector.whenStable(SETTLE_TIMEOUT_MS, stableCallback);
+                            return;
+                        }
+                        startCapture();
                     }
                 }
         );
 
-        TouchRectView touchRectView = (TouchRectView) findViewById(R.id.touch_rect);
-        mPreview.setTouchRectView(touchRectView);
+        touchRectView = (TouchRectView) findViewById(R.id.touch_rect);
+        roiReadout = (TextView) findViewById(R.id.roi_readout);
+        metricsOverlay = (TextView) findViewById(R.id.metrics_overlay);
+        sharpnessReadout = (TextView) findViewById(R.id.sharpness_readout);
+        spectrumReadout = (TextView) findViewById(R.id.spectrum_readout);
+        kineticsReadout = (TextView) findViewById(R.id.kinetics_readout);
+        detectionReadout = (TextView) findViewById(R.id.detection_readout);
+        histogramView = (HistogramView) findViewById(R.id.histogram_view);
+        histogramReadout = (TextView) findViewById(R.id.histogram_readout);
 
         mLastUpdateTime = "";
 
@@ -329,32 +950,6 @@ public class CameraActivity extends AppCompatActivity implements
                 Toast.LENGTH_LONG).show();
     }
 
-    private void writeGPSInfo(File imgFile, Location location) {
-        try {
-            ExifInterface exifInterface = new ExifInterface(imgFile.getAbsolutePath());
-            double latitude = location.getLatitude();
-            Log.d(TAG, "Latitude: " + latitude);
-            String[] latitudeDMS = Location.convert(latitude, Location.FORMAT_SECONDS).split(":");
-            String latitudeFormat = Math.abs(Integer.parseInt(latitudeDMS[0])) +
-                    "/1," + latitudeDMS[1] + "/1," + (int) (Double.parseDouble(latitudeDMS[2]) * 10000) + "/10000";
-            exifInterface.setAttribute(ExifInterface.TAG_GPS_LATITUDE, latitudeFormat);
-            exifInterface.setAttribute(ExifInterface.TAG_GPS_LATITUDE_REF, (latitude > 0) ? "N" : "S");
-            Log.d(TAG, "Latitude: " + latitudeFormat + ((latitude > 0) ? "N" : "S"));
-
-            double longitude = location.getLongitude();
-            Log.d(TAG, "Longitude: " + longitude);
-            String[] longitudeDMS = Location.convert(longitude, Location.FORMAT_SECONDS).split(":");
-            String longitudeFormat = Math.abs(Integer.parseInt(longitudeDMS[0])) +
-                    "/1," + longitudeDMS[1] + "/1," + (int)(Double.parseDouble(longitudeDMS[2])*10000) + "/10000";
-            exifInterface.setAttribute(ExifInterface.TAG_GPS_LONGITUDE, longitudeFormat);
-            exifInterface.setAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF, (longitude > 0) ? "E" : "W");
-            Log.d(TAG, "Longitude: " + longitudeFormat + ((longitude > 0) ? "E":"W"));
-            exifInterface.saveAttributes();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     @Override
     public void onConnectionSuspended(int cause) {
         // The connection to Google Play services was lost for some reason. We call connect() to
@@ -395,6 +990,7 @@ public class CameraActivity extends AppCompatActivity implements
     @Override
     protected void onResume() {
         super.onResume();
+        paused = false;
 
         // Within {@code onPause()}, we pause location updates, but leave the
         // connection to GoogleApiClient intact.  Here, we resume receiving
@@ -411,6 +1007,10 @@ public class CameraActivity extends AppCompatActivity implements
     @Override
     protected void onPause() {
         super.onPause();
+        paused = true;
+
+        // Readings need the preview, end the run; the ticks written so far stay in the file
+        stopKinetics();
 
         // release the camera immediately on pause event
         releaseCamera();
@@ -422,10 +1022,28 @@ public class CameraActivity extends AppCompatActivity implements
     }
 
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // Let queued pictures finish writing, then stop the writer threads
+        burstWriter.shutdown();
+        previewProcessor.quit();
+        cameraOpener.shutdown();
+        metricsOverlay.removeCallbacks(showMetrics);
+        if (frameStacker != null) {
+            frameStacker.quit();
+        }
+        if (hdrMerger != null) {
+            hdrMerger.quit();
+        }
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_camera, menu);
+        kineticsItem = menu.findItem(R.id.action_kinetics);
         return true;
     }
 
@@ -441,36 +1059,569 @@ public class CameraActivity extends AppCompatActivity implements
             return true;
         }
 
+        if (id == R.id.action_auto_roi) {
+            item.setChecked(!item.isChecked());
+            setAutoRoi(item.isChecked());
+            return true;
+        }
+
+        if (id == R.id.action_measure_roi) {
+            item.setChecked(!item.isChecked());
+            setMeasureRoi(item.isChecked());
+            return true;
+        }
+
+        if (id == R.id.action_kinetics) {
+            if (kineticsRecorder != null) {
+                stopKinetics();
+            } else {
+                startKinetics();
+            }
+            return true;
+        }
+
+        if (id == R.id.action_spectrum) {
+            item.setChecked(!item.isChecked());
+            setSpectrumMode(item.isChecked());
+            return true;
+        }
+
+        if (id == R.id.action_stack) {
+            item.setChecked(!item.isChecked());
+            stackFrames = item.isChecked();
+            return true;
+        }
+
+        if (id == R.id.action_hdr) {
+            item.setChecked(!item.isChecked());
+            hdrBracket = item.isChecked();
+            return true;
+        }
+
+        if (id == R.id.action_record_dark || id == R.id.action_record_flat) {
+            pendingReference = id == R.id.action_record_dark ? Calibration.DARK : Calibration.FLAT;
+            Toast.makeText(this, pendingReference == Calibration.DARK ?
+                    "Cover the lens and capture to record the dark frame" :
+                    "Capture an evenly lit white target to record the flat field", Toast.LENGTH_LONG).show();
+            return true;
+        }
+
+        if (id == R.id.action_fit_color) {
+            fitColorCorrection();
+            return true;
+        }
+
+        if (id == R.id.action_clear_color) {
+            colorCorrection = null;
+            ColorCorrection.forget(colorPrefs);
+            if (frameStacker != null) {
+                frameStacker.setColorCorrection(null);
+            }
+            Toast.makeText(this, "Colour correction cleared", Toast.LENGTH_SHORT).show();
+            return true;
+        }
+
+        if (id == R.id.action_clear_calibration) {
+            pendingReference = -1;
+            getFrameStacker().clearCalibration();
+            Toast.makeText(this, "Calibration cleared", Toast.LENGTH_SHORT).show();
+            return true;
+        }
+
+        if (id == R.id.action_zsl) {
+            item.setChecked(!item.isChecked());
+            zeroShutterLag = item.isChecked();
+            updateRing();
+            return true;
+        }
+
+        if (id == R.id.action_raw) {
+            item.setChecked(!item.isChecked());
+            rawCapture = item.isChecked();
+            updateRing();
+            return true;
+        }
+
+        if (id == R.id.action_hold_still) {
+            item.setChecked(!item.isChecked());
+            setHoldStill(item.isChecked());
+            return true;
+        }
+
+        if (id == R.id.action_auto_capture) {
+            item.setChecked(!item.isChecked());
+            setAutoCapture(item.isChecked());
+            return true;
+        }
+
+        if (id == R.id.action_histogram) {
+            item.setChecked(!item.isChecked());
+            setShowHistogram(item.isChecked());
+            return true;
+        }
+
+        if (id == R.id.action_show_timings) {
+            item.setChecked(!item.isChecked());
+            metricsOverlay.removeCallbacks(showMetrics);
+            if (item.isChecked()) {
+                metricsOverlay.setVisibility(View.VISIBLE);
+                showMetrics.run();
+            } else {
+                metricsOverlay.setVisibility(View.GONE);
+            }
+            return true;
+        }
+
+        if (id == R.id.action_export_timings) {
+            exportMetrics();
+            return true;
+        }
+
         return super.onOptionsItemSelected(item);
     }
 
+    /** Select the region of interest, and focus and meter on it, from regions found in the preview */
+    private void setAutoRoi(boolean enabled) {
+        if (enabled && regionDetector == null) {
+            // Test zones and wells are darker than the white strip or plate around them
+            regionDetector = new RegionDetector(true, AUTO_ROI_STABLE_FRAMES, regionListener);
+            previewProcessor.addAnalyzer(regionDetector);
+            detectionReadout.setText("Looking for regions");
+            detectionReadout.setVisibility(View.VISIBLE);
+        } else if (!enabled && regionDetector != null) {
+            previewProcessor.removeAnalyzer(regionDetector);
+            regionDetector = null;
+            detectionReadout.removeCallbacks(applyDetection);
+            synchronized (measuredRegions) {
+                measuredRegions.count = 0;
+            }
+            touchRectView.removeCallbacks(showRegionValues);
+            touchRectView.setRegions(0, regionViewLeft, regionViewTop, regionViewRight, regionViewBottom);
+            detectionReadout.setVisibility(View.GONE);
+        }
+    }
+
+    /** Show live statistics of the region of interest, which is selected by tapping the preview */
+    private void setMeasureRoi(boolean enabled) {
+        if (enabled && roiAnalyzer == null) {
+            roiAnalyzer = new RoiAnalyzer(roiStatsListener);
+            roiAnalyzer.setRoi(selectedRoi);
+            previewProcessor.addAnalyzer(roiAnalyzer);
+            touchRectView.setRoi(selectedRoiView);
+            roiReadout.setText("Tap the preview to select a region");
+            roiReadout.setVisibility(View.VISIBLE);
+        } else if (!enabled && roiAnalyzer != null) {
+            stopKinetics();
+            previewProcessor.removeAnalyzer(roiAnalyzer);
+            roiAnalyzer = null;
+            roiReadout.setVisibility(View.GONE);
+            if (spectrumExtractor == null) {
+                touchRectView.setRoi(null);
+            }
+        }
+    }
+
+    /** Record the ROI over time, see {@link KineticsRecorder}; the readings come from ROI measuring */
+    private void startKinetics() {
+        if (roiAnalyzer == null || selectedRoi == null) {
+            Toast.makeText(this, "Measure a region first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File file = getOutputMediaFile("KIN_" + newTimeStamp() + ".csv");
+        if (file == null) {
+            Log.d(TAG, "Error creating media file, check storage permissions: ");
+            return;
+        }
+        kineticsRecorder = new KineticsRecorder(file, KINETICS_INTERVAL_MS, KINETICS_DURATION_MS,
+                kineticsListener);
+        // The run lasts longer than the screen timeout
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        kineticsItem.setChecked(true);
+        kineticsReadout.setText("Kinetics started, first reading in "
+                + KINETICS_INTERVAL_MS / 1000 + " s");
+        kineticsReadout.setVisibility(View.VISIBLE);
+    }
+
+    /** End the run early, {@link KineticsRecorder.Listener#onFinished} reports the file */
+    private void stopKinetics() {
+        if (kineticsRecorder != null) {
+            kineticsRecorder.stop();
+            endKinetics();
+        }
+    }
+
+    private void endKinetics() {
+        kineticsRecorder = null;
+        getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+        if (kineticsItem != null) {
+            kineticsItem.setChecked(false);
+        }
+        kineticsReadout.removeCallbacks(showCurve);
+        kineticsReadout.setVisibility(View.GONE);
+    }
+
+    /** Show the levels of every preview frame, to check that the exposure does not clip the assay */
+    private void setShowHistogram(boolean enabled) {
+        if (enabled && histogramAnalyzer == null) {
+            histogramAnalyzer = new HistogramAnalyzer(histogramListener);
+            previewProcessor.addAnalyzer(histogramAnalyzer);
+            histogramReadout.setText("clip");
+            histogramView.setVisibility(View.VISIBLE);
+            histogramReadout.setVisibility(View.VISIBLE);
+        } else if (!enabled && histogramAnalyzer != null) {
+            previewProcessor.removeAnalyzer(histogramAnalyzer);
+            histogramAnalyzer = null;
+            histogramView.removeCallbacks(showHistogram);
+            histogramView.setVisibility(View.GONE);
+            histogramReadout.setVisibility(View.GONE);
+        }
+    }
+
+    /** Extract the intensity profile along the selected strip, the capture button then saves it */
+    private void setSpectrumMode(boolean enabled) {
+        if (enabled && spectrumExtractor == null) {
+            spectrumExtractor = new SpectrumExtractor(spectrumListener);
+            spectrumExtractor.setAveraging(SPECTRUM_AVERAGING);
+            spectrumExtractor.setStrip(selectedRoi);
+            previewProcessor.addAnalyzer(spectrumExtractor);
+            touchRectView.setRoi(selectedRoiView);
+            spectrumReadout.setText("Tap the preview to select the strip");
+            spectrumReadout.setVisibility(View.VISIBLE);
+        } else if (!enabled && spectrumExtractor != null) {
+            previewProcessor.removeAnalyzer(spectrumExtractor);
+            spectrumExtractor = null;
+            spectrumReadout.setVisibility(View.GONE);
+            if (roiAnalyzer == null) {
+                touchRectView.setRoi(null);
+            }
+        }
+    }
+
+    /** Save the current spectrum as a small CSV instead of taking pictures */
+    private void saveSpectrum() {
+        final SpectrumExtractor.Spectrum spectrum = new SpectrumExtractor.Spectrum();
+        synchronized (latestSpectrum) {
+            spectrum.set(latestSpectrum);
+        }
+        if (spectrum.length == 0) {
+            Toast.makeText(this, "No spectrum yet, select a strip first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final File file = getOutputMediaFile("SPEC_" + newTimeStamp() + ".csv");
+        if (file == null) {
+            Log.d(TAG, "Error creating media file, check storage permissions: ");
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    spectrum.export(file);
+                    sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
+                    message = "Spectrum saved to " + file.getName();
+                } catch (IOException e) {
+                    Log.d(TAG, "Error saving spectrum: " + e.getMessage());
+                    message = "Failed to save spectrum";
+                }
+                final String text = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(CameraActivity.this, text, Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        }, "SpectrumExport").start();
+    }
+
+    /** Wait for the camera to hold still before a burst and stop bursts when it moves */
+    private void setHoldStill(boolean enabled) {
+        if (enabled && motionDetector == null) {
+            motionDetector = new MotionDetector(MOTION_THRESHOLD, SETTLE_FRAMES);
+            previewProcessor.addAnalyzer(motionDetector);
+        } else if (!enabled && motionDetector != null) {
+            motionDetector.cancelWait();
+            previewProcessor.removeAnalyzer(motionDetector);
+            motionDetector = null;
+            buttonCapture.setText("Capture");
+            buttonCapture.setEnabled(!burstScheduler.isRunning());
+        }
+    }
+
+    /** Fit the colour correction to the measured ROI, which should cover a grey reference patch */
+    private void fitColorCorrection() {
+        if (roiAnalyzer == null || selectedRoi == null) {
+            Toast.makeText(this, "Measure an ROI on the grey patch first", Toast.LENGTH_LONG).show();
+            return;
+        }
+        float[] measured = new float[3];
+        synchronized (latestRoiStats) {
+            System.arraycopy(latestRoiStats.mean, 0, measured, 0, 3);
+        }
+        ColorCorrection fitted = ColorCorrection.fitNeutral(measured);
+        if (fitted == null) {
+            Toast.makeText(this, "Patch too dark to fit colour", Toast.LENGTH_LONG).show();
+            return;
+        }
+        colorCorrection = fitted;
+        colorCorrection.save(colorPrefs);
+        getFrameStacker().setColorCorrection(colorCorrection);
+        Log.d(TAG, "Colour gains " + fitted.getGain(0) + ", " + fitted.getGain(1) + ", " + fitted.getGain(2));
+        Toast.makeText(this, "Colour correction fitted", Toast.LENGTH_SHORT).show();
+    }
+
+    /** Start a burst by itself once the preview, or the selected region, is in focus */
+    private void setAutoCapture(boolean enabled) {
+        if (enabled && sharpnessAnalyzer == null) {
+            sharpnessAnalyzer = new SharpnessAnalyzer(SHARPNESS_THRESHOLD, SHARP_FRAME_COUNT, sharpnessListener);
+            sharpnessAnalyzer.setRegion(selectedRoi);
+            previewProcessor.addAnalyzer(sharpnessAnalyzer);
+            sharpnessReadout.setVisibility(View.VISIBLE);
+        } else if (!enabled && sharpnessAnalyzer != null) {
+            previewProcessor.removeAnalyzer(sharpnessAnalyzer);
+            sharpnessAnalyzer = null;
+            buttonCapture.removeCallbacks(autoCapture);
+            sharpnessReadout.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Keep recent preview frames while zero shutter lag or raw capture is on, bursts are then taken
+     * from them instead of takePicture
+     */
+    private void updateRing() {
+        boolean enabled = zeroShutterLag || rawCapture;
+        if (enabled && zslRing == null) {
+            zslRing = new ZslRingBuffer(ZSL_FRAME_COUNT, MAX_PICTURE);
+            previewProcessor.addAnalyzer(zslRing);
+        } else if (!enabled && zslRing != null) {
+            previewProcessor.removeAnalyzer(zslRing);
+            zslRing = null;
+        }
+    }
+
+    /** Start a burst, from the preview frames if zero shutter lag or raw capture is on */
+    private void startCapture() {
+        if (spectrumExtractor != null) {
+            saveSpectrum();
+            return;
+        }
+        if (zslRing != null) {
+            captureFromRing();
+            return;
+        }
+        if (mCamera == null) {
+            // Released while waiting for the camera to hold still
+            return;
+        }
+        BurstPlan plan = burstPlan;
+        if (hdrBracket) {
+            plan = buildBracketPlan();
+            if (plan == null) {
+                Toast.makeText(this, "This camera cannot change exposure", Toast.LENGTH_SHORT).show();
+                return;
+            }
+        }
+        File sessionFile = getOutputSessionFile();
+        if (sessionFile == null) {
+            Log.d(TAG, "Error creating media file, check storage permissions: ");
+            return;
+        }
+        stopLocationUpdates();
+        buttonCapture.setEnabled(false);
+        startSeriesSound.play();
+        currentBurst = burstWriter.beginBurst(sessionFile, burstSavedListener);
+        if (hdrBracket) {
+            // Averaging different exposures makes no sense, the bracket is merged instead
+            getHdrMerger().begin(getOutputMediaFile("HDR_" + newTimeStamp()), mergeSavedListener);
+            merging = true;
+        } else {
+            beginStack();
+        }
+        burstScheduler.start(mCamera, cameraSettings, plan, burstListener);
+    }
+
+    /**
+     * Plan a burst stepping exposure compensation evenly across the camera's range and fill in
+     * {@link #bracketExposures}, null if the camera has no exposure compensation
+     */
+    private BurstPlan buildBracketPlan() {
+        int min = cameraSettings.getMinExposureCompensation();
+        int max = cameraSettings.getMaxExposureCompensation();
+        float step = cameraSettings.getExposureCompensationStep();
+        if (min >= max || step <= 0) {
+            return null;
+        }
+        boolean unlockAe = cameraSettings.get(CameraSettings.KEY_AUTO_EXPOSURE_LOCK) != null;
+        BurstPlan.Builder builder = new BurstPlan.Builder()
+                .setShotCount(BRACKET_SHOT_COUNT)
+                .setIntervalMs(BRACKET_INTERVAL_MS);
+        bracketExposures = new float[BRACKET_SHOT_COUNT];
+        for (int i = 0; i < BRACKET_SHOT_COUNT; ++i) {
+            int index = Math.round(min + (float) (max - min) * i / (BRACKET_SHOT_COUNT - 1));
+            bracketExposures[i] = (float) Math.pow(2, index * step);
+            builder.setOverride(i, CameraSettings.KEY_EXPOSURE_COMPENSATION, String.valueOf(index));
+            if (unlockAe) {
+                // A locked exposure does not follow the compensation; the lock comes back after
+                builder.setOverride(i, CameraSettings.KEY_AUTO_EXPOSURE_LOCK, "false");
+            }
+        }
+        return builder.build();
+    }
+
+    private HdrMerger getHdrMerger() {
+        if (hdrMerger == null) {
+            hdrMerger = new HdrMerger(HDR_SAMPLE_SIZE);
+        }
+        return hdrMerger;
+    }
+
+    /** Scene motion at a {@link System#nanoTime()} time, NaN when motion is not measured */
+    private float motionAt(long timeNs) {
+        return motionDetector == null ? Float.NaN : motionDetector.motionAt(timeNs);
+    }
+
+    /** Save the preview frames nearest to the button press */
+    private void captureFromRing() {
+        long pressNs = System.nanoTime();
+        long pressMillis = System.currentTimeMillis();
+        if (zslRing.isSnapshotInUse()) {
+            Toast.makeText(this, "Still saving the last pictures, try again!", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final ZslRingBuffer ring = zslRing;
+        final ZslRingBuffer.Snapshot snapshot = ring.snapshot(pressNs);
+        if (snapshot == null) {
+            Toast.makeText(this, "No preview frames yet, try again!", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        File sessionFile = getOutputSessionFile();
+        if (sessionFile == null) {
+            Log.d(TAG, "Error creating media file, check storage permissions: ");
+            ring.release(snapshot);
+            return;
+        }
+
+        startSeriesSound.play();
+        beginStack();
+        // The snapshot buffers are reused once the writer and the stacker are both done with them
+        final Runnable release = new Runnable() {
+            private int users = stacking ? 2 : 1;
+
+            @Override
+            public void run() {
+                if (--users == 0) {
+                    ring.release(snapshot);
+                }
+            }
+        };
+        BurstWriter.Burst burst = burstWriter.beginBurst(sessionFile, new BurstWriter.BurstListener() {
+            @Override
+            public void onBurstSaved(BurstWriter.Burst burst) {
+                burstSavedListener.onBurstSaved(burst);
+                release.run();
+            }
+        });
+        int width = snapshot.width;
+        int height = snapshot.height;
+        for (int i = 0; i < snapshot.getCount(); ++i) {
+            long timestampNs = snapshot.timestampsNs[i];
+            long frameMillis = pressMillis + (timestampNs - pressNs) / 1000000;
+            float motion = motionAt(timestampNs);
+            byte[] frame = snapshot.frames[i];
+            if (rawCapture) {
+                burstWriter.submitRaw(burst, i, frame, width, height, timestampNs, frameMillis, motion);
+            } else {
+                burstWriter.submitYuv(burst, i, frame, width, height,
+                        new ExifWriter(mCurrentLocation, frameMillis, i), timestampNs, frameMillis, motion);
+            }
+            if (stacking) {
+                frameStacker.addNv21(frame, width, height);
+            }
+        }
+        burstWriter.endBurst(burst);
+        if (stacking) {
+            frameStacker.afterQueuedFrames(release);
+            frameStacker.finish();
+            stacking = false;
+        }
+    }
+
+    private void beginStack() {
+        if (pendingReference >= 0) {
+            getFrameStacker().beginReference(pendingReference, referenceSavedListener);
+            pendingReference = -1;
+            stacking = true;
+        } else if (stackFrames) {
+            getFrameStacker().begin(getOutputMediaFile("STACK_" + newTimeStamp()), stackSavedListener);
+            stacking = true;
+        }
+    }
+
+    private FrameStacker getFrameStacker() {
+        if (frameStacker == null) {
+            frameStacker = new FrameStacker(STACK_SAMPLE_SIZE, true);
+            frameStacker.setCalibration(calibration);
+            frameStacker.setColorCorrection(colorCorrection);
+        }
+        return frameStacker;
+    }
+
+    /** Save the capture latency histograms as CSV next to the pictures */
+    private void exportMetrics() {
+        final File file = getOutputMediaFile("TIMING_" + newTimeStamp() + ".csv");
+        if (file == null) {
+            Log.d(TAG, "Error creating media file, check storage permissions: ");
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    CaptureMetrics.getInstance().export(file);
+                    sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, Uri.fromFile(file)));
+                    message = "Timings saved to " + file.getName();
+                } catch (IOException e) {
+                    Log.d(TAG, "Error exporting timings: " + e.getMessage());
+                    message = "Failed to export timings";
+                }
+                final String text = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(CameraActivity.this, text, Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        }, "MetricsExport").start();
+    }
+
     private void releaseCamera(){
         if (mCamera != null){
+            burstScheduler.abort();
+            if (motionDetector != null) {
+                motionDetector.cancelWait();
+                buttonCapture.setText("Capture");
+                buttonCapture.setEnabled(true);
+            }
+            mPreview.release();
             mCamera.stopPreview();
-            //mCamera.setPreviewCallback(null);
+            previewProcessor.detach();
             mPreview.getHolder().removeCallback(mPreview);
-            mCamera.release();        // release the camera for other applications
+            cameraOpener.release(mCamera);        // release the camera for other applications
             preview.removeView(mPreview);
             mPreview = null;
             mCamera = null;
+            cameraSettings = null;
         }
     }
 
-    /** A safe way to get an instance of the Camera object. */
-    private static Camera getCameraInstance(int cameraId){
-        Camera c = null;
-        try {
-            c = Camera.open(cameraId); // attempt to get a Camera instance
-        }
-        catch (Exception e){
-            // Camera is not available (in use or does not exist)
-        }
-        return c; // returns null if camera is unavailable
-    }
-
     /** Set camera display orientation */
-    public static void setCameraDisplayOrientation(Activity activity,
-                                                   int cameraId, Camera camera) {
+    public static int setCameraDisplayOrientation(Activity activity,
+                                                  int cameraId, Camera camera) {
         Camera.CameraInfo info =
                 new android.hardware.Camera.CameraInfo();
         Camera.getCameraInfo(cameraId, info);
@@ -492,93 +1643,86 @@ public class CameraActivity extends AppCompatActivity implements
             result = (info.orientation - degrees + 360) % 360;
         }
         camera.setDisplayOrientation(result);
+        return result;
     }
 
-    /** Open camera */
+    /** Open camera on the opener thread, {@link #cameraCallback} finishes the setup */
     private void openCamera(int cameraId) {
-        if (mCamera != null) {
+        if (mCamera != null || cameraOpening) {
             return;
         }
         /* TODO: If Camera Activity is called from another activity, return error if cannot open camera */
-        mCamera = getCameraInstance(cameraId);
-        if (mCamera == null) {
-            Log.d(TAG, "Camera is null");
-            return;
-        }
+        cameraOpening = true;
+        // The preview fills the screen, and its frames are also analysed and saved
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        PreviewSizePolicy.Strategy previewStrategy = new PreviewSizePolicy.Larger(
+                new PreviewSizePolicy.Display(metrics.widthPixels, metrics.heightPixels),
+                new PreviewSizePolicy.Analysis(ANALYSIS_PIXEL_BUDGET));
+        cameraOpener.open(cameraId, previewStrategy, cameraCallback);
+    }
 
-        // Set default camera parameters using Read, Modify, Write technique
-        // Read
-        Camera.Parameters params = mCamera.getParameters();
-
-        // Modify
-        // Set camera orientation
-        setCameraDisplayOrientation(this, cameraId, mCamera);
-        // Search for best preview size and set preview size
-        {
-            int width = 0;
-            int height = 0;
-            int maxArea = 0;
-            for (Camera.Size size : params.getSupportedPreviewSizes()) {
-                int area = size.width * size.height;
-                if (area > maxArea) {
-                    width = size.width;
-                    height = size.height;
-                    maxArea = area;
-                }
-            }
-            params.setPreviewSize(width, height);
-        }
+    private final CameraOpener.Callback cameraCallback = new CameraOpener.Callback() {
+        @Override
+        public void configure(Camera.Parameters params, CameraProfile profile) {
+            // Sizes come from the profile: the largest picture, and a preview with its aspect ratio
 
-        // Search for best picture size and set piture size
-        {
-            int width = 0;
-            int height = 0;
-            int maxArea = 0;
-            for (Camera.Size size : params.getSupportedPictureSizes ()) {
-                int area = size.width * size.height;
-                if (area > maxArea) {
-                    width = size.width;
-                    height = size.height;
-                    maxArea = area;
-                }
-            }
-            params.setPictureSize(width, height);
-        }
+            // Set image quality
+            params.setJpegQuality(100);
 
-        // Set image quality
-        params.setJpegQuality(100);
+            // Set focus mode
+            params.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
 
-        // Set focus mode
-        params.setFocusMode(Camera.Parameters.FOCUS_MODE_AUTO);
+            // Set exposure offset
+            params.setExposureCompensation(0);
 
-        // Set exposure offset
-        params.setExposureCompensation(0);
+            // Set white balance
+            params.setWhiteBalance(Camera.Parameters.WHITE_BALANCE_FLUORESCENT);
 
-        // Set white balance
-        params.setWhiteBalance(Camera.Parameters.WHITE_BALANCE_FLUORESCENT);
+            // Set iso
+            params.set("iso", String.valueOf("100"));
 
-        // Set iso
-        params.set("iso", String.valueOf("100"));
+            // lock auto exposure
+            if (profile.aeLockSupported) {
+                params.setAutoExposureLock(true);
+            }
 
-        // lock auto exposure
-        if (params.isAutoExposureLockSupported()) {
-            params.setAutoExposureLock(true);
+            // lock auto white balance
+            if (profile.awbLockSupported) {
+                params.setAutoWhiteBalanceLock(true);
+            }
         }
 
-        // lock auto white balance
-        if (params.isAutoWhiteBalanceLockSupported()) {
-            params.setAutoWhiteBalanceLock(true);
+        @Override
+        public void onCameraOpened(Camera camera, CameraProfile profile, CameraSettings settings) {
+            cameraOpening = false;
+            if (paused || isFinishing()) {
+                // Left the activity while the camera was opening
+                cameraOpener.release(camera);
+                return;
+            }
+            mCamera = camera;
+            cameraSettings = settings;
+
+            // Set camera orientation
+            int displayOrientation = setCameraDisplayOrientation(CameraActivity.this, profile.cameraId, mCamera);
+
+            // Create our Preview view and set it as the content of our activity.
+            mPreview = new CameraPreview(CameraActivity.this, mCamera, cameraSettings);
+            mPreview.setFocusOnTouch(true);
+            mPreview.setPreviewProcessor(previewProcessor);
+            mPreview.setDisplayOrientation(displayOrientation);
+            mPreview.setOnRoiSelectedListener(roiSelectedListener);
+            mPreview.setTouchRectView(touchRectView);
+            preview = (FrameLayout) findViewById(R.id.camera_preview);
+            preview.addView(mPreview);
         }
 
-        // Write
-        mCamera.setParameters(params);
-
-        // Create our Preview view and set it as the content of our activity.
-        mPreview = new CameraPreview(this, mCamera);
-        mPreview.setFocusOnTouch(true);
-        preview = (FrameLayout) findViewById(R.id.camera_preview);
-        preview.addView(mPreview);
-    }
+        @Override
+        public void onCameraOpenFailed(int cameraId) {
+            cameraOpening = false;
+            Log.d(TAG, "Camera is null");
+        }
+    };
 
     /** Shutter Start Series Sound */
     private static class StartPictureSeriesSound {
@@ -608,28 +1752,42 @@ public class CameraActivity extends AppCompatActivity implements
         }
     }
 
-    /** Create a File for saving an image */
-    private static File getOutputImageFile(int count){
+    /** Create a session container file for the frames of one burst, see {@link SessionContainer} */
+    private static File getOutputSessionFile(){
+        return getOutputMediaFile("SES_" + newTimeStamp() + ".bsc");
+    }
+
+    private static final SimpleDateFormat timeStampFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS");
+
+    private static synchronized String newTimeStamp() {
+        return timeStampFormat.format(new Date());
+    }
+
+    // Set once the directory is known to exist
+    private static File mediaStorageDir = null;
+
+    /** Create a File with the given name in the pictures directory */
+    private static File getOutputMediaFile(String name){
         // To be safe, you should check that the SDCard is mounted
         // using Environment.getExternalStorageState() before doing this.
 
-        File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_PICTURES), "MyCameraApp");
-        // This location works best if you want the created images to be shared
-        // between applications and persist after your app has been uninstalled.
-
-        // Create the storage directory if it does not exist
-        if (! mediaStorageDir.exists()){
-            if (! mediaStorageDir.mkdirs()){
-                Log.d("MyCameraApp", "failed to create directory");
-                return null;
+        if (mediaStorageDir == null) {
+            File dir = new File(Environment.getExternalStoragePublicDirectory(
+                    Environment.DIRECTORY_PICTURES), "MyCameraApp");
+            // This location works best if you want the created images to be shared
+            // between applications and persist after your app has been uninstalled.
+
+            // Create the storage directory if it does not exist
+            if (! dir.exists()){
+                if (! dir.mkdirs()){
+                    Log.d("MyCameraApp", "failed to create directory");
+                    return null;
+                }
             }
+            mediaStorageDir = dir;
         }
 
-        // Create a media file name
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        return new File(mediaStorageDir.getPath() + File.separator +
-                    "IMG_"+ timeStamp + "_" + count + ".jpg");
+        return new File(mediaStorageDir.getPath() + File.separator + name);
     }
 
 }
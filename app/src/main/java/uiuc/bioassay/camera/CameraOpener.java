@@ -0,0 +1,197 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Opens, configures and releases cameras off the main thread.
+ * <p/>
+ * Work runs on one thread in the order it was requested, so an open after a release waits for the
+ * camera to be free. The thread has no looper on purpose: Camera delivers its callbacks to the
+ * looper of the thread that opened it, or the main looper if there is none, so callbacks keep
+ * arriving on the main thread as they did when the camera was opened there.
+ */
+public class CameraOpener {
+    private static final String TAG = "CAMERA OPENER";
+    private static final String PREFS_NAME = "camera_profiles";
+
+    public interface Callback {
+        /**
+         * Called on the opener thread with the camera's parameters already sized from the profile.
+         * Further settings go here; they are written with the sizes in one setParameters call.
+         */
+        void configure(Camera.Parameters params, CameraProfile profile);
+
+        /**
+         * Called on the main thread once the camera is configured.
+         *
+         * @param settings the parameters just set, for later changes without reading them back
+         */
+        void onCameraOpened(Camera camera, CameraProfile profile, CameraSettings settings);
+
+        /** Called on the main thread if the camera could not be opened */
+        void onCameraOpenFailed(int cameraId);
+    }
+
+    /** A configured camera on its way to the main thread */
+    private static class Opened {
+        private final Camera camera;
+        private final CameraProfile profile;
+        private final CameraSettings settings;
+
+        private Opened(Camera camera, CameraProfile profile, CameraSettings settings) {
+            this.camera = camera;
+            this.profile = profile;
+            this.settings = settings;
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "CameraOpener");
+        }
+    });
+
+    public CameraOpener(Context context) {
+        prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /** @param previewStrategy picks the preview size when the camera has no saved profile */
+    public void open(final int cameraId, final PreviewSizePolicy.Strategy previewStrategy,
+                     final Callback callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                Camera camera = openCamera(cameraId);
+                final Opened opened = camera == null ? null : configure(camera, cameraId, previewStrategy, callback);
+                if (camera != null && opened == null) {
+                    camera.release();
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (opened == null) {
+                            callback.onCameraOpenFailed(cameraId);
+                        } else {
+                            callback.onCameraOpened(opened.camera, opened.profile, opened.settings);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /** Release a camera, the preview should already be stopped */
+    public void release(final Camera camera) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                camera.release();
+            }
+        });
+    }
+
+    /** Stop the opener thread once pending work is done */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static Camera openCamera(int cameraId) {
+        try {
+            return Camera.open(cameraId);
+        } catch (RuntimeException e) {
+            // Camera is not available (in use or does not exist)
+            Log.d(TAG, "Error opening camera " + cameraId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Apply the saved profile, or probe and save a new one. Returns null if the camera is unusable. */
+    private Opened configure(Camera camera, int cameraId, PreviewSizePolicy.Strategy previewStrategy,
+                             Callback callback) {
+        CameraProfile profile = CameraProfile.load(prefs, cameraId);
+        if (profile != null) {
+            try {
+                return new Opened(camera, profile, apply(camera, profile, callback));
+            } catch (RuntimeException e) {
+                // Saved settings no longer work, e.g. after a camera update under the same build
+                Log.d(TAG, "Saved profile rejected, probing again: " + e.getMessage());
+                CameraProfile.forget(prefs, cameraId);
+            }
+        }
+
+        try {
+            profile = CameraProfile.probe(cameraId, camera.getParameters(), previewStrategy);
+            CameraSettings settings = apply(camera, profile, callback);
+            profile.save(prefs);
+            return new Opened(camera, profile, settings);
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Error configuring camera " + cameraId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static CameraSettings apply(Camera camera, CameraProfile profile, Callback callback) {
+        Camera.Parameters params = camera.getParameters();
+        params.setPreviewSize(profile.previewWidth, profile.previewHeight);
+        params.setPictureSize(profile.pictureWidth, profile.pictureHeight);
+        callback.configure(params, profile);
+        camera.setParameters(params);
+        return new CameraSettings(camera, params);
+    }
+}
@@ -44,9 +44,9 @@ package uiuc.bioassay.camera;
 
 import android.content.Context;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.media.MediaActionSound;
-import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.MotionEvent;
@@ -55,8 +55,6 @@ import android.view.SurfaceView;
 import android.widget.Toast;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 @SuppressWarnings("deprecation")
 /** A basic Camera preview class */
@@ -64,14 +62,49 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
     private static final String TAG = "CAMERA PREVIEW";
     private SurfaceHolder mHolder;
     private Camera mCamera;
+    private CameraSettings settings;
     private boolean focusOnTouch;
     private FocusSound focusSound;
+    private final FocusController focusController;
+
+    // Square drawn where the user tapped, the selected region and the focus point, reused for every tap
+    private final Rect touchRect = new Rect();
+    private final Rect roiRect = new Rect();
+    private final RectF roiFrameRect = new RectF();
+    private final Rect focusRect = new Rect();
+    private final RectF focusFrameRect = new RectF();
+    private final Runnable clearTouchRect = new Runnable() {
+        @Override
+        public void run() {
+            touchRectView.setRect(null);
+        }
+    };
 
     private TouchRectView touchRectView = null;
+    private PreviewProcessor previewProcessor = null;
+
+    /** Size of the region of interest selected by a tap, in view pixels */
+    private static final int ROI_SIZE = 100;
+
+    /** Notified when a tap selects a new region of interest */
+    public interface OnRoiSelectedListener {
+        /**
+         * Both rects may be reused by the caller once this returns.
+         *
+         * @param viewRect   the region in view coordinates
+         * @param normalized the same region as fractions of the camera frame
+         */
+        void onRoiSelected(Rect viewRect, RectF normalized);
+    }
+
+    private OnRoiSelectedListener roiSelectedListener = null;
+    private int displayOrientation = 0;
 
-    public CameraPreview(Context context, Camera camera) {
+    /** @param settings the camera's parameters, changed by touch focus */
+    public CameraPreview(Context context, Camera camera, CameraSettings settings) {
         super(context);
         mCamera = camera;
+        this.settings = settings;
 
         // Install a SurfaceHolder.Callback so we get notified when the
         // underlying surface is created and destroyed.
@@ -80,12 +113,14 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
 
         // Add focus sound
         focusSound = new FocusSound();
+        focusController = new FocusController(camera, settings, focusListener);
     }
 
     public void surfaceCreated(SurfaceHolder holder) {
         // The Surface has been created, now tell the camera where to draw the preview.
         try {
             mCamera.setPreviewDisplay(holder);
+            attachPreviewProcessor();
             mCamera.startPreview();
         } catch (IOException e) {
             Log.d(TAG, "Error setting camera preview: " + e.getMessage());
@@ -119,6 +154,7 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         // start preview with new settings
         try {
             mCamera.setPreviewDisplay(mHolder);
+            attachPreviewProcessor();
             mCamera.startPreview();
 
         } catch (Exception e){
@@ -126,61 +162,115 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
     }
 
-    public void setFocusOnTouch(boolean val) {
-        focusOnTouch = val;
+    /** Frames go through the processor, if any, while the preview runs */
+    public void setPreviewProcessor(PreviewProcessor previewProcessor) {
+        this.previewProcessor = previewProcessor;
     }
 
-    /** Works of touch on focus go here */
-    public void doTouchFocus(final Rect focusRect, final Rect meteringRect) {
-        try {
-            // Cancel previous auto focus
-            mCamera.cancelAutoFocus();
+    private void attachPreviewProcessor() {
+        if (previewProcessor != null) {
+            previewProcessor.attach(mCamera, settings.getPreviewSize());
+        }
+    }
 
-            // Read, Modify, Write camera parameters
-            // Read parameters
-            Camera.Parameters params = mCamera.getParameters();
+    public void setOnRoiSelectedListener(OnRoiSelectedListener listener) {
+        roiSelectedListener = listener;
+    }
 
-            // Modify parameters
-            // set focus mode in openCamera
+    /** Rotation set with {@link Camera#setDisplayOrientation}, used to map view to frame coordinates */
+    public void setDisplayOrientation(int degrees) {
+        displayOrientation = degrees;
+    }
 
-            // Check if focus area supported
-            if (params.getMaxNumFocusAreas() > 0) {
-                // Set focus area
-                List<Camera.Area> focusAreas = new ArrayList<>();
-                focusAreas.add(new Camera.Area(focusRect, 1000));
+    /** Map a rectangle in view coordinates to fractions of the (unrotated) camera frame */
+    public void mapViewToFrame(Rect viewRect, RectF out) {
+        float left = (float) viewRect.left / getWidth();
+        float top = (float) viewRect.top / getHeight();
+        float right = (float) viewRect.right / getWidth();
+        float bottom = (float) viewRect.bottom / getHeight();
+        switch (displayOrientation) {
+            case 90:
+                out.set(top, 1 - right, bottom, 1 - left);
+                break;
+            case 180:
+                out.set(1 - right, 1 - bottom, 1 - left, 1 - top);
+                break;
+            case 270:
+                out.set(1 - bottom, left, 1 - top, right);
+                break;
+            default:
+                out.set(left, top, right, bottom);
+                break;
+        }
+    }
 
-                params.setFocusAreas(focusAreas);
-            }
+    /** Map a rectangle given as fractions of the camera frame to view coordinates */
+    public void mapFrameToView(RectF frameRect, Rect out) {
+        float left, top, right, bottom;
+        switch (displayOrientation) {
+            case 90:
+                left = 1 - frameRect.bottom;
+                top = frameRect.left;
+                right = 1 - frameRect.top;
+                bottom = frameRect.right;
+                break;
+            case 180:
+                left = 1 - frameRect.right;
+                top = 1 - frameRect.bottom;
+                right = 1 - frameRect.left;
+                bottom = 1 - frameRect.top;
+                break;
+            case 270:
+                left = frameRect.top;
+                top = 1 - frameRect.right;
+                right = frameRect.bottom;
+                bottom = 1 - frameRect.left;
+                break;
+            default:
+                left = frameRect.left;
+                top = frameRect.top;
+                right = frameRect.right;
+                bottom = frameRect.bottom;
+                break;
+        }
+        out.set(Math.round(left * getWidth()), Math.round(top * getHeight()),
+                Math.round(right * getWidth()), Math.round(bottom * getHeight()));
+    }
 
-            // Check if metering supported
-            if (params.getMaxNumMeteringAreas() > 0) {
-                // Set metering area
-                List<Camera.Area> meteringAreas = new ArrayList<>();
-                meteringAreas.add(new Camera.Area(meteringRect, 1000));
+    /** Focus and meter on the centre of a rectangle given as fractions of the camera frame */
+    public void focusOn(RectF frameRect) {
+        focusController.requestFocus(frameRect.centerX(), frameRect.centerY());
+    }
 
-                params.setMeteringAreas(meteringAreas);
-            }
+    public void setFocusOnTouch(boolean val) {
+        focusOnTouch = val;
+    }
 
-            // Write parameters
-            mCamera.setParameters(params);
-
-
-            // Perform auto focus
-            mCamera.autoFocus(
-                    new Camera.AutoFocusCallback() {
-                        @Override
-                        public void onAutoFocus(boolean success, Camera camera) {
-                            if (success) {
-                                focusSound.play();
-                            } else {
-                                Toast.makeText(getContext(), "Fail to focus, try again!", Toast.LENGTH_SHORT).show();
-                            }
-                        }
-                    }
-            );
-        } catch (Exception e) {
-            Toast.makeText(getContext(), "Unable to focus, try again!", Toast.LENGTH_SHORT).show();
+    /**
+     * Focus on a tap in view coordinates, at most one focus runs at a time and later taps wait for
+     * it
+     */
+    public void doTouchFocus(float x, float y) {
+        focusRect.set((int) x, (int) y, (int) x, (int) y);
+        mapViewToFrame(focusRect, focusFrameRect);
+        focusOn(focusFrameRect);
+    }
+
+    private final FocusController.Listener focusListener = new FocusController.Listener() {
+        @Override
+        public void onFocusFinished(boolean success) {
+            if (success) {
+                focusSound.play();
+            } else {
+                Toast.makeText(getContext(), "Fail to focus, try again!", Toast.LENGTH_SHORT).show();
+            }
         }
+    };
+
+    /** Stop focusing, call before the camera is released */
+    public void release() {
+        focusController.release();
+        removeCallbacks(clearTouchRect);
     }
 
     @Override
@@ -190,68 +280,38 @@ public class CameraPreview extends SurfaceView implements SurfaceHolder.Callback
         }
 
         if (event.getAction() == MotionEvent.ACTION_DOWN) {
-            float x = event.getRawX();
-            float y = event.getRawY();
-            Rect focusRect = calculateTapArea(x, y, 1f);
-            Rect meteringRect = calculateTapArea(event.getRawX(), event.getRawY(), 1.8f);
-            doTouchFocus(focusRect, meteringRect);
-
-            final Rect touchRect = new Rect(
-                    (int)(x - 50),
-                    (int)(y - 50),
-                    (int)(x + 50),
-                    (int)(y + 50));
+            // View coordinates, which the focus square, the region and the focus point all use
+            float x = event.getX();
+            float y = event.getY();
+            doTouchFocus(x, y);
+
             if (touchRectView != null) {
+                touchRect.set(
+                        (int)(x - 50),
+                        (int)(y - 50),
+                        (int)(x + 50),
+                        (int)(y + 50));
                 touchRectView.setRect(touchRect);
-                touchRectView.invalidate();
-
-                // Remove the square after some time
-                Handler handler = new Handler();
-                handler.postDelayed(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        touchRectView.setRect(new Rect(0, 0, 0, 0));
-                        touchRectView.invalidate();
-                    }
-                }, 1000);
-            }
 
-        }
-        return false;
-    }
-
-    private Camera.Size getResolution() {
-        Camera.Parameters params = mCamera.getParameters();
-        return params.getPreviewSize();
-    }
-
-    /**
-     * Convert x, y touch position position -1000:-1000 to 1000:1000.
-     */
-    private Rect calculateTapArea(float x, float y, float coefficient) {
-        float focusAreaSize = 200;
-        int areaSize = Float.valueOf(focusAreaSize * coefficient).intValue();
-
-        int centerX = (int) ((x / getWidth()) * 2000 - 1000);
-        int centerY = (int) ((y / getHeight()) * 2000 - 1000);
-
-        int left = clamp(centerX - areaSize / 2, -1000, 1000);
-        int right = clamp(left + areaSize, -1000, 1000);
-        int top = clamp(centerY - areaSize / 2, -1000, 1000);
-        int bottom = clamp(top + areaSize, -1000, 1000);
+                // Remove the square after some time, a new tap restarts the delay
+                removeCallbacks(clearTouchRect);
+                postDelayed(clearTouchRect, 1000);
+            }
 
-        return new Rect(left, top, right, bottom);
-    }
+            if (roiSelectedListener != null) {
+                // The region of interest stays until the next tap, in view coordinates
+                roiRect.set(
+                        (int) (x - ROI_SIZE / 2),
+                        (int) (y - ROI_SIZE / 2),
+                        (int) (x + ROI_SIZE / 2),
+                        (int) (y + ROI_SIZE / 2));
+                roiRect.intersect(0, 0, getWidth(), getHeight());
+                mapViewToFrame(roiRect, roiFrameRect);
+                roiSelectedListener.onRoiSelected(roiRect, roiFrameRect);
+            }
 
-    private int clamp(int x, int min, int max) {
-        if (x > max) {
-            return max;
         }
-        if (x < min) {
-            return min;
-        }
-        return x;
+        return false;
     }
 
     /** Focus Sound */
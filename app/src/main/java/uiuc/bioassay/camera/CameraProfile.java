@@ -0,0 +1,167 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.content.SharedPreferences;
+import android.hardware.Camera;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the app needs to know about a camera: the sizes it uses and the capabilities it checks.
+ * <p/>
+ * Probing walks every supported size, which is slow on older devices, so profiles are saved per
+ * camera id and reused until the device build changes.
+ */
+public class CameraProfile {
+    /** Bump when the way sizes are chosen changes, so saved profiles are probed again */
+    private static final int VERSION = 2;
+
+    private static final String KEY_VERSION = ".version";
+    private static final String KEY_FINGERPRINT = ".fingerprint";
+    private static final String KEY_PREVIEW_WIDTH = ".previewWidth";
+    private static final String KEY_PREVIEW_HEIGHT = ".previewHeight";
+    private static final String KEY_PICTURE_WIDTH = ".pictureWidth";
+    private static final String KEY_PICTURE_HEIGHT = ".pictureHeight";
+    private static final String KEY_AE_LOCK = ".aeLock";
+    private static final String KEY_AWB_LOCK = ".awbLock";
+    private static final String KEY_FOCUS_AREAS = ".focusAreas";
+    private static final String KEY_METERING_AREAS = ".meteringAreas";
+
+    public final int cameraId;
+    public final int previewWidth;
+    public final int previewHeight;
+    public final int pictureWidth;
+    public final int pictureHeight;
+    public final boolean aeLockSupported;
+    public final boolean awbLockSupported;
+    public final int maxNumFocusAreas;
+    public final int maxNumMeteringAreas;
+
+    private CameraProfile(int cameraId, int previewWidth, int previewHeight, int pictureWidth,
+                          int pictureHeight, boolean aeLockSupported, boolean awbLockSupported,
+                          int maxNumFocusAreas, int maxNumMeteringAreas) {
+        this.cameraId = cameraId;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.pictureWidth = pictureWidth;
+        this.pictureHeight = pictureHeight;
+        this.aeLockSupported = aeLockSupported;
+        this.awbLockSupported = awbLockSupported;
+        this.maxNumFocusAreas = maxNumFocusAreas;
+        this.maxNumMeteringAreas = maxNumMeteringAreas;
+    }
+
+    /**
+     * Build a profile from the camera's parameters, using the largest picture size and the preview
+     * size the strategy picks for it
+     */
+    public static CameraProfile probe(int cameraId, Camera.Parameters params,
+                                      PreviewSizePolicy.Strategy previewStrategy) {
+        Camera.Size largestPicture = largest(params.getSupportedPictureSizes());
+        PreviewSizePolicy.Size picture = new PreviewSizePolicy.Size(largestPicture.width, largestPicture.height);
+        List<PreviewSizePolicy.Size> previewSizes = new ArrayList<>();
+        for (Camera.Size size : params.getSupportedPreviewSizes()) {
+            previewSizes.add(new PreviewSizePolicy.Size(size.width, size.height));
+        }
+        PreviewSizePolicy.Size preview = previewStrategy.choose(previewSizes, picture);
+        return new CameraProfile(cameraId,
+                preview.width, preview.height,
+                picture.width, picture.height,
+                params.isAutoExposureLockSupported(),
+                params.isAutoWhiteBalanceLockSupported(),
+                params.getMaxNumFocusAreas(),
+                params.getMaxNumMeteringAreas());
+    }
+
+    /** The saved profile of a camera, or null if there is none for this build */
+    public static CameraProfile load(SharedPreferences prefs, int cameraId) {
+        String prefix = String.valueOf(cameraId);
+        if (!Build.FINGERPRINT.equals(prefs.getString(prefix + KEY_FINGERPRINT, null)) ||
+                prefs.getInt(prefix + KEY_VERSION, 0) != VERSION) {
+            return null;
+        }
+        return new CameraProfile(cameraId,
+                prefs.getInt(prefix + KEY_PREVIEW_WIDTH, 0),
+                prefs.getInt(prefix + KEY_PREVIEW_HEIGHT, 0),
+                prefs.getInt(prefix + KEY_PICTURE_WIDTH, 0),
+                prefs.getInt(prefix + KEY_PICTURE_HEIGHT, 0),
+                prefs.getBoolean(prefix + KEY_AE_LOCK, false),
+                prefs.getBoolean(prefix + KEY_AWB_LOCK, false),
+                prefs.getInt(prefix + KEY_FOCUS_AREAS, 0),
+                prefs.getInt(prefix + KEY_METERING_AREAS, 0));
+    }
+
+    public void save(SharedPreferences prefs) {
+        String prefix = String.valueOf(cameraId);
+        prefs.edit()
+                .putInt(prefix + KEY_VERSION, VERSION)
+                .putString(prefix + KEY_FINGERPRINT, Build.FINGERPRINT)
+                .putInt(prefix + KEY_PREVIEW_WIDTH, previewWidth)
+                .putInt(prefix + KEY_PREVIEW_HEIGHT, previewHeight)
+                .putInt(prefix + KEY_PICTURE_WIDTH, pictureWidth)
+                .putInt(prefix + KEY_PICTURE_HEIGHT, pictureHeight)
+                .putBoolean(prefix + KEY_AE_LOCK, aeLockSupported)
+                .putBoolean(prefix + KEY_AWB_LOCK, awbLockSupported)
+                .putInt(prefix + KEY_FOCUS_AREAS, maxNumFocusAreas)
+                .putInt(prefix + KEY_METERING_AREAS, maxNumMeteringAreas)
+                .apply();
+    }
+
+    /** Drop a saved profile, e.g. because the camera rejected it */
+    public static void forget(SharedPreferences prefs, int cameraId) {
+        prefs.edit().remove(cameraId + KEY_FINGERPRINT).apply();
+    }
+
+    private static Camera.Size largest(Iterable<Camera.Size> sizes) {
+        Camera.Size best = null;
+        for (Camera.Size size : sizes) {
+            if (best == null || size.width * size.height > best.width * best.height) {
+                best = size;
+            }
+        }
+        return best;
+    }
+}
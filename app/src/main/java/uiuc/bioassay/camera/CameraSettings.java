@@ -0,0 +1,176 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.hardware.Camera;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The app's copy of a camera's parameters.
+ * <p/>
+ * {@link Camera#getParameters()} and {@link Camera#setParameters} each flatten or parse every
+ * parameter of the camera, and setParameters may reconfigure the HAL. Changes go into this copy
+ * instead and are pushed by {@link #apply} only when a value actually changed, so taps on the same
+ * spot or overrides equal to the current value cost nothing. Reads never go to the camera.
+ * <p/>
+ * Camera1 can only push the whole parameter set, so a change to one key still sends all of them;
+ * what is saved is the read back and every push that would not change anything.
+ */
+public class CameraSettings {
+    public static final String KEY_EXPOSURE_COMPENSATION = "exposure-compensation";
+    public static final String KEY_AUTO_EXPOSURE_LOCK = "auto-exposure-lock";
+    // Keys Camera.Parameters uses for these, it has no public constants for them
+    private static final String KEY_FOCUS_AREAS = "focus-areas";
+    private static final String KEY_METERING_AREAS = "metering-areas";
+    private static final String KEY_PREVIEW_SIZE = "preview-size";
+
+    private final Camera camera;
+    private Camera.Parameters params;
+    private final Set<String> dirty = new HashSet<>();
+    private Camera.Size previewSize;
+
+    /** @param params the parameters the camera currently has, e.g. the ones just set on it */
+    public CameraSettings(Camera camera, Camera.Parameters params) {
+        this.camera = camera;
+        this.params = params;
+    }
+
+    public synchronized String get(String key) {
+        return params.get(key);
+    }
+
+    /** Change a value, returns false if it already had this value */
+    public synchronized boolean set(String key, String value) {
+        String old = params.get(key);
+        if (value == null ? old == null : value.equals(old)) {
+            return false;
+        }
+        params.set(key, value);
+        dirty.add(key);
+        return true;
+    }
+
+    public synchronized void setFocusAreas(List<Camera.Area> areas) {
+        String old = params.get(KEY_FOCUS_AREAS);
+        params.setFocusAreas(areas);
+        markIfChanged(KEY_FOCUS_AREAS, old);
+    }
+
+    public synchronized void setMeteringAreas(List<Camera.Area> areas) {
+        String old = params.get(KEY_METERING_AREAS);
+        params.setMeteringAreas(areas);
+        markIfChanged(KEY_METERING_AREAS, old);
+    }
+
+    public synchronized int getMaxNumFocusAreas() {
+        return params.getMaxNumFocusAreas();
+    }
+
+    public synchronized int getMaxNumMeteringAreas() {
+        return params.getMaxNumMeteringAreas();
+    }
+
+    /** Lowest exposure compensation index, 0 if compensation is not supported */
+    public synchronized int getMinExposureCompensation() {
+        return params.getMinExposureCompensation();
+    }
+
+    /** Highest exposure compensation index, 0 if compensation is not supported */
+    public synchronized int getMaxExposureCompensation() {
+        return params.getMaxExposureCompensation();
+    }
+
+    /** EV of one exposure compensation index */
+    public synchronized float getExposureCompensationStep() {
+        return params.getExposureCompensationStep();
+    }
+
+    public synchronized Camera.Size getPreviewSize() {
+        if (previewSize == null) {
+            previewSize = params.getPreviewSize();
+        }
+        return previewSize;
+    }
+
+    /** Whether there are changes not yet pushed to the camera */
+    public synchronized boolean isDirty() {
+        return !dirty.isEmpty();
+    }
+
+    /**
+     * Push pending changes to the camera, does nothing if there are none. If the camera rejects
+     * them the copy is read back from the camera and the exception is rethrown.
+     */
+    public synchronized void apply() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        if (dirty.contains(KEY_PREVIEW_SIZE)) {
+            previewSize = null;
+        }
+        dirty.clear();
+        try {
+            camera.setParameters(params);
+        } catch (RuntimeException e) {
+            refresh();
+            throw e;
+        }
+    }
+
+    /** Drop pending changes and read the parameters from the camera again */
+    public synchronized void refresh() {
+        params = camera.getParameters();
+        dirty.clear();
+        previewSize = null;
+    }
+
+    private void markIfChanged(String key, String old) {
+        String value = params.get(key);
+        if (value == null ? old != null : !value.equals(old)) {
+            dirty.add(key);
+        }
+    }
+}
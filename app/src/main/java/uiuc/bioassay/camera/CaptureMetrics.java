@@ -0,0 +1,171 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.os.Build;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Latency of each stage of a capture, one {@link LatencyHistogram} per stage.
+ * <p/>
+ * Stages record themselves wherever they happen, e.g.
+ * {@code CaptureMetrics.getInstance().get(CaptureMetrics.WRITE).recordSince(startNs)}, which does not
+ * allocate. {@link #format} summarises the percentiles for an on screen overlay and {@link #export}
+ * writes the full histograms so that devices can be compared offline.
+ */
+public class CaptureMetrics {
+    /** Touch to focus, from the autoFocus request to its callback */
+    public static final int FOCUS = 0;
+    /** From takePicture to the JPEG callback, shutter lag and delivery together */
+    public static final int CAPTURE = 1;
+    /** How late a burst shot was triggered compared to its plan */
+    public static final int SCHEDULE_DELAY = 2;
+    /** startPreview after a picture */
+    public static final int PREVIEW_RESTART = 3;
+    /** Encoding and writing one frame to storage */
+    public static final int WRITE = 4;
+    /** All analysers on one preview frame */
+    public static final int ANALYSIS = 5;
+    public static final int STAGE_COUNT = 6;
+
+    private static final String[] STAGE_NAMES = {
+            "focus", "capture", "schedule_delay", "preview_restart", "write", "analysis"
+    };
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    private static CaptureMetrics instance;
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGE_COUNT];
+    // Only used by the thread calling format()
+    private final long[] formatSnapshot = new long[LatencyHistogram.BUCKET_COUNT];
+
+    public static synchronized CaptureMetrics getInstance() {
+        if (instance == null) {
+            instance = new CaptureMetrics();
+        }
+        return instance;
+    }
+
+    private CaptureMetrics() {
+        for (int i = 0; i < STAGE_COUNT; ++i) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public LatencyHistogram get(int stage) {
+        return histograms[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /** One line per stage with its count and p50/p90/p99 in ms, appended to {@code out} */
+    public synchronized void format(StringBuilder out) {
+        for (int stage = 0; stage < STAGE_COUNT; ++stage) {
+            histograms[stage].snapshot(formatSnapshot);
+            long count = LatencyHistogram.count(formatSnapshot);
+            out.append(STAGE_NAMES[stage]).append(" n=").append(count);
+            if (count > 0) {
+                for (double p : PERCENTILES) {
+                    long micros = LatencyHistogram.percentile(formatSnapshot, p);
+                    out.append(" p").append((int) (p * 100)).append('=');
+                    appendMillis(out, micros);
+                }
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Write every stage as CSV: a summary row per stage, then the non empty buckets. The device is
+     * recorded in comment lines at the top.
+     */
+    public void export(File file) throws IOException {
+        long[] snapshot = new long[LatencyHistogram.BUCKET_COUNT];
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try {
+            out.write("# model=" + Build.MANUFACTURER + " " + Build.MODEL + "\n");
+            out.write("# fingerprint=" + Build.FINGERPRINT + "\n");
+            out.write("# time_ms=" + System.currentTimeMillis() + "\n");
+            out.write("stage,count,p50_us,p90_us,p99_us\n");
+            for (int stage = 0; stage < STAGE_COUNT; ++stage) {
+                histograms[stage].snapshot(snapshot);
+                out.write(STAGE_NAMES[stage] + "," + LatencyHistogram.count(snapshot));
+                for (double p : PERCENTILES) {
+                    out.write("," + LatencyHistogram.percentile(snapshot, p));
+                }
+                out.write("\n");
+            }
+            out.write("stage,bucket_start_us,count\n");
+            for (int stage = 0; stage < STAGE_COUNT; ++stage) {
+                histograms[stage].snapshot(snapshot);
+                for (int i = 0; i < snapshot.length; ++i) {
+                    if (snapshot[i] > 0) {
+                        out.write(STAGE_NAMES[stage] + "," + LatencyHistogram.bucketStart(i) + "," +
+                                snapshot[i] + "\n");
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Append micros as milliseconds with one decimal, without going through String.format */
+    private static void appendMillis(StringBuilder out, long micros) {
+        long tenths = (micros + 50) / 100;
+        out.append(tenths / 10).append('.').append(tenths % 10);
+    }
+}
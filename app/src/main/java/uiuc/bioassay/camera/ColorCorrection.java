@@ -0,0 +1,167 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.content.SharedPreferences;
+
+/**
+ * Per channel colour correction baked into lookup tables.
+ * <p/>
+ * White balance is locked to fluorescent, but sensors and their processing still differ between
+ * devices. The correction is fitted from a reference patch of known colour in the frame as one
+ * gain per channel, and the gains are baked into a 256 entry table per channel holding the
+ * corrected value already shifted into place. Correcting a pixel is three lookups and two ORs, no
+ * floating point, so a full resolution frame takes a few milliseconds. Float values, such as the
+ * mean of a stack, are corrected by interpolating in the unrounded table the 8 bit one is built
+ * from, so both agree up to rounding.
+ * <p/>
+ * Instances are immutable and may be shared between threads.
+ */
+public class ColorCorrection {
+    private static final String KEY_GAIN_R = "colorGainR";
+    private static final String KEY_GAIN_G = "colorGainG";
+    private static final String KEY_GAIN_B = "colorGainB";
+    /** Patch channels darker than this are too noisy to fit a gain from */
+    private static final float MIN_PATCH_LEVEL = 8f;
+
+    private final float[] gains;
+    // Corrected R, G and B values for inputs 0 to 255, not rounded
+    private final float[] levels = new float[3 * 256];
+    // The same rounded to 8 bits and already shifted into their ARGB position
+    private final int[] lut = new int[3 * 256];
+
+    private ColorCorrection(float gainR, float gainG, float gainB) {
+        gains = new float[]{gainR, gainG, gainB};
+        for (int c = 0; c < 3; ++c) {
+            int shift = 16 - 8 * c;
+            for (int v = 0; v < 256; ++v) {
+                levels[256 * c + v] = v * gains[c];
+                lut[256 * c + v] = clamp(Math.round(levels[256 * c + v])) << shift;
+            }
+        }
+    }
+
+    /**
+     * Fit the correction that turns a patch's measured colour into its known colour.
+     *
+     * @param measured mean R, G, B of the patch in the frame
+     * @param target   R, G, B the patch should have
+     * @return null if the patch is too dark to fit
+     */
+    public static ColorCorrection fit(float[] measured, float[] target) {
+        for (int c = 0; c < 3; ++c) {
+            if (measured[c] < MIN_PATCH_LEVEL) {
+                return null;
+            }
+        }
+        return new ColorCorrection(target[0] / measured[0], target[1] / measured[1], target[2] / measured[2]);
+    }
+
+    /** Fit from a grey patch, keeping its green level so the exposure does not change */
+    public static ColorCorrection fitNeutral(float[] measured) {
+        float level = measured[1];
+        return fit(measured, new float[]{level, level, level});
+    }
+
+    /** The saved correction, or null if there is none */
+    public static ColorCorrection load(SharedPreferences prefs) {
+        if (!prefs.contains(KEY_GAIN_R)) {
+            return null;
+        }
+        return new ColorCorrection(prefs.getFloat(KEY_GAIN_R, 1), prefs.getFloat(KEY_GAIN_G, 1),
+                prefs.getFloat(KEY_GAIN_B, 1));
+    }
+
+    public void save(SharedPreferences prefs) {
+        prefs.edit()
+                .putFloat(KEY_GAIN_R, gains[0])
+                .putFloat(KEY_GAIN_G, gains[1])
+                .putFloat(KEY_GAIN_B, gains[2])
+                .apply();
+    }
+
+    public static void forget(SharedPreferences prefs) {
+        prefs.edit().remove(KEY_GAIN_R).remove(KEY_GAIN_G).remove(KEY_GAIN_B).apply();
+    }
+
+    /** Gain of channel 0 (R), 1 (G) or 2 (B), e.g. to scale variances by its square */
+    public float getGain(int channel) {
+        return gains[channel];
+    }
+
+    /**
+     * Correct a float value of channel 0 (R), 1 (G) or 2 (B). Values outside 0 to 255 are clamped
+     * like they are when converted to 8 bits, the result is not.
+     */
+    public float correct(int channel, float value) {
+        if (value <= 0) {
+            return levels[256 * channel];
+        }
+        if (value >= 255) {
+            return levels[256 * channel + 255];
+        }
+        int i = 256 * channel + (int) value;
+        float fraction = value - (int) value;
+        return levels[i] + fraction * (levels[i + 1] - levels[i]);
+    }
+
+    /** Correct one opaque ARGB pixel */
+    public int apply(int argb) {
+        return 0xff000000 | lut[(argb >> 16) & 0xFF] | lut[256 + ((argb >> 8) & 0xFF)] |
+                lut[512 + (argb & 0xFF)];
+    }
+
+    /** Correct pixels [from, to) in place */
+    public void apply(int[] pixels, int from, int to) {
+        int[] lut = this.lut;
+        for (int i = from; i < to; ++i) {
+            int argb = pixels[i];
+            pixels[i] = 0xff000000 | lut[(argb >> 16) & 0xFF] | lut[256 + ((argb >> 8) & 0xFF)] |
+                    lut[512 + (argb & 0xFF)];
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,543 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.location.Location;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Adds GPS, date/time and image number tags to a JPEG while it is being written, so the picture
+ * does not have to be read back and rewritten by {@link android.media.ExifInterface}.
+ * <p/>
+ * If the camera already wrote an Exif segment it is kept as is: copies of IFD0 and the Exif IFD
+ * with the new tags are appended to the end of the TIFF data and the header is pointed at them, so
+ * none of the existing offsets move. When that would not fit in the 64 KB segment the thumbnail is
+ * dropped to make room. Otherwise a new Exif segment is inserted after SOI/APP0.
+ */
+public class ExifWriter {
+    private static final String TAG = "EXIF WRITER";
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    private static final int TYPE_BYTE = 1;
+    private static final int TYPE_ASCII = 2;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_RATIONAL = 5;
+
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    // In the Exif IFD
+    private static final int TAG_IMAGE_NUMBER = 0x9211;
+
+    private static final int[] IFD0_TAGS = {TAG_DATE_TIME, TAG_EXIF_IFD};
+    private static final int[] IFD0_TAGS_WITH_GPS = {TAG_DATE_TIME, TAG_EXIF_IFD, TAG_GPS_IFD};
+    private static final int[] EXIF_TAGS = {TAG_IMAGE_NUMBER};
+
+    private static final int TAG_GPS_VERSION_ID = 0x0000;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+    private static final int TAG_GPS_ALTITUDE_REF = 0x0005;
+    private static final int TAG_GPS_ALTITUDE = 0x0006;
+    private static final int TAG_GPS_TIME_STAMP = 0x0007;
+    private static final int TAG_GPS_DATE_STAMP = 0x001D;
+
+    private static final int ENTRY_SIZE = 12;
+    private static final int DATE_TIME_LENGTH = 20;   // "yyyy:MM:dd HH:mm:ss\0"
+    private static final int DATE_STAMP_LENGTH = 11;  // "yyyy:MM:dd\0"
+    private static final int SECONDS_DENOMINATOR = 10000;
+
+    private final Location location;
+    private final long timeMillis;
+    private final int imageNumber;
+
+    /**
+     * @param location    where the picture was taken, or null to leave out the GPS tags
+     * @param timeMillis  when the picture was taken
+     * @param imageNumber index of the picture in its burst
+     */
+    public ExifWriter(Location location, long timeMillis, int imageNumber) {
+        this.location = location;
+        this.timeMillis = timeMillis;
+        this.imageNumber = imageNumber;
+    }
+
+    /**
+     * Write the JPEG with the tags added. Unrecognised data is written unchanged.
+     *
+     * @return false if the tags could not be added and the JPEG was written as is
+     */
+    public boolean writeTo(OutputStream out, byte[] jpeg) throws IOException {
+        return writeTo(out, jpeg, jpeg.length);
+    }
+
+    /** Same as {@link #writeTo(OutputStream, byte[])} for a JPEG in the first length bytes */
+    public boolean writeTo(OutputStream out, byte[] jpeg, int length) throws IOException {
+        if (length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != MARKER_SOI) {
+            Log.d(TAG, "Not a JPEG, writing without tags");
+            out.write(jpeg, 0, length);
+            return false;
+        }
+
+        // Look for an Exif APP1 segment before the image data, remember where a new one would go
+        int insertAt = 2;
+        int exifStart = -1;
+        int exifEnd = -1;
+        int pos = 2;
+        while (pos + 4 <= length && (jpeg[pos] & 0xFF) == 0xFF) {
+            int marker = jpeg[pos + 1] & 0xFF;
+            if (marker == MARKER_SOS) {
+                break;
+            }
+            int segmentLength = ((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF);
+            int next = pos + 2 + segmentLength;
+            if (next > length) {
+                break;
+            }
+            if (marker == MARKER_APP0 && pos == 2) {
+                insertAt = next;
+            } else if (marker == MARKER_APP1 && isExif(jpeg, pos + 4, segmentLength - 2)) {
+                exifStart = pos;
+                exifEnd = next;
+                break;
+            }
+            pos = next;
+        }
+
+        if (exifStart >= 0) {
+            byte[] segment = extendExif(jpeg, exifStart + 4 + EXIF_HEADER.length, exifEnd);
+            if (segment == null) {
+                Log.d(TAG, "Existing Exif segment could not be extended, writing without tags");
+                out.write(jpeg, 0, length);
+                return false;
+            }
+            out.write(jpeg, 0, exifStart);
+            out.write(segment);
+            out.write(jpeg, exifEnd, length - exifEnd);
+        } else {
+            byte[] segment = newExif();
+            out.write(jpeg, 0, insertAt);
+            out.write(segment);
+            out.write(jpeg, insertAt, length - insertAt);
+        }
+        return true;
+    }
+
+    private static boolean isExif(byte[] jpeg, int offset, int length) {
+        if (length < EXIF_HEADER.length + 8 || offset + EXIF_HEADER.length > jpeg.length) {
+            return false;
+        }
+        for (int i = 0; i < EXIF_HEADER.length; ++i) {
+            if (jpeg[offset + i] != EXIF_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** A complete APP1 segment holding only our tags */
+    private byte[] newExif() {
+        int[] ifd0Tags = ourIfd0Tags();
+        int size = 8 + ifdSize(ifd0Tags.length) + DATE_TIME_LENGTH + ifdSize(1) + gpsSize();
+        ByteBuffer buffer = startSegment(size, ByteOrder.BIG_ENDIAN);
+        int tiffStart = buffer.position();
+        buffer.put((byte) 'M').put((byte) 'M').putShort((short) 42).putInt(8);
+        writeTags(buffer, tiffStart, null, 0, 0, ifd0Tags, ifd0Tags.length, 0, 0, 0);
+        return buffer.array();
+    }
+
+    /**
+     * Copy of the camera's Exif segment with IFD0 and the Exif IFD relocated to the end and our
+     * tags added. If that does not fit in a segment, the IFD1 thumbnail is dropped when it is at the
+     * end of the TIFF data, as cameras write it.
+     */
+    private byte[] extendExif(byte[] jpeg, int tiffStart, int tiffEnd) {
+        int tiffLength = tiffEnd - tiffStart;
+        ByteOrder order;
+        if (jpeg[tiffStart] == 'I' && jpeg[tiffStart + 1] == 'I') {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else if (jpeg[tiffStart] == 'M' && jpeg[tiffStart + 1] == 'M') {
+            order = ByteOrder.BIG_ENDIAN;
+        } else {
+            return null;
+        }
+        ByteBuffer old = ByteBuffer.wrap(jpeg, tiffStart, tiffLength).order(order);
+        int ifd0Offset = old.getInt(tiffStart + 4);
+        int oldCount = readIfdCount(jpeg, tiffStart, tiffLength, ifd0Offset, order);
+        if (oldCount < 0) {
+            return null;
+        }
+        int oldEntries = tiffStart + ifd0Offset + 2;
+        int nextIfd = old.getInt(oldEntries + oldCount * ENTRY_SIZE);
+
+        // The camera's Exif IFD, if any, is copied with the image number merged in
+        int oldExifEntries = 0;
+        int oldExifCount = 0;
+        int exifIfdEntry = findEntry(jpeg, oldEntries, oldCount, TAG_EXIF_IFD, order);
+        if (exifIfdEntry >= 0) {
+            int exifOffset = old.getInt(exifIfdEntry + 8);
+            oldExifCount = readIfdCount(jpeg, tiffStart, tiffLength, exifOffset, order);
+            if (oldExifCount < 0) {
+                return null;
+            }
+            oldExifEntries = tiffStart + exifOffset + 2;
+        }
+
+        int[] ifd0Tags = ourIfd0Tags();
+        int ifd0Count = keptCount(jpeg, oldEntries, oldCount, ifd0Tags, order) + ifd0Tags.length;
+        int exifCount = keptCount(jpeg, oldExifEntries, oldExifCount, EXIF_TAGS, order) + EXIF_TAGS.length;
+        int added = ifdSize(ifd0Count) + DATE_TIME_LENGTH + ifdSize(exifCount) + gpsSize();
+
+        int copyLength = tiffLength;
+        if (fullSegment(copyLength + (copyLength & 1) + added)) {
+            int thumbnailOffset = tailThumbnailOffset(jpeg, tiffStart, tiffLength, nextIfd, order);
+            if (thumbnailOffset < 0 || ifd0Offset >= thumbnailOffset ||
+                    (oldExifEntries != 0 && oldExifEntries - tiffStart >= thumbnailOffset)) {
+                return null;
+            }
+            Log.d(TAG, "Dropping the Exif thumbnail to make room for tags");
+            copyLength = thumbnailOffset;
+            nextIfd = 0;
+            if (fullSegment(copyLength + (copyLength & 1) + added)) {
+                return null;
+            }
+        }
+
+        int padding = copyLength & 1;
+        int newIfd0Offset = copyLength + padding;
+        ByteBuffer buffer = startSegment(newIfd0Offset + added, order);
+        int newTiffStart = buffer.position();
+        buffer.put(jpeg, tiffStart, copyLength);
+        if (padding != 0) {
+            buffer.put((byte) 0);
+        }
+        buffer.putInt(newTiffStart + 4, newIfd0Offset);
+        writeTags(buffer, newTiffStart, jpeg, oldEntries, oldCount, ifd0Tags, ifd0Count, nextIfd,
+                oldExifEntries, oldExifCount);
+        return buffer.array();
+    }
+
+    /** Whether a TIFF block of this size is too large for an APP1 segment */
+    private static boolean fullSegment(int tiffSize) {
+        return 4 + EXIF_HEADER.length + tiffSize > MAX_SEGMENT_LENGTH + 2;
+    }
+
+    /** Entry count of the IFD at this TIFF offset, -1 if it does not fit in the TIFF data */
+    private static int readIfdCount(byte[] jpeg, int tiffStart, int tiffLength, int offset, ByteOrder order) {
+        if (offset < 8 || offset + 2 > tiffLength) {
+            return -1;
+        }
+        int count = readShort(jpeg, tiffStart + offset, order);
+        return offset + ifdSize(count) > tiffLength ? -1 : count;
+    }
+
+    /** Position of the entry with this tag, -1 if there is none */
+    private static int findEntry(byte[] jpeg, int entries, int count, int tag, ByteOrder order) {
+        for (int i = 0; i < count; ++i) {
+            if (readShort(jpeg, entries + i * ENTRY_SIZE, order) == tag) {
+                return entries + i * ENTRY_SIZE;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * TIFF offset of the IFD1 thumbnail if the thumbnail is the last thing in the TIFF data, so the
+     * data can be cut there; -1 otherwise
+     */
+    private static int tailThumbnailOffset(byte[] jpeg, int tiffStart, int tiffLength, int ifd1Offset,
+                                           ByteOrder order) {
+        int count = readIfdCount(jpeg, tiffStart, tiffLength, ifd1Offset, order);
+        if (count < 0) {
+            return -1;
+        }
+        ByteBuffer old = ByteBuffer.wrap(jpeg).order(order);
+        int entries = tiffStart + ifd1Offset + 2;
+        int offsetEntry = findEntry(jpeg, entries, count, TAG_JPEG_INTERCHANGE_FORMAT, order);
+        int lengthEntry = findEntry(jpeg, entries, count, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, order);
+        if (offsetEntry < 0 || lengthEntry < 0) {
+            return -1;
+        }
+        int offset = old.getInt(offsetEntry + 8);
+        long end = (long) offset + old.getInt(lengthEntry + 8);
+        // Allow for a padding byte after the thumbnail
+        return offset >= 8 && ifd1Offset < offset && end <= tiffLength && tiffLength - end <= 1 ? offset : -1;
+    }
+
+    private static ByteBuffer startSegment(int tiffSize, ByteOrder order) {
+        int length = 2 + EXIF_HEADER.length + tiffSize;
+        ByteBuffer buffer = ByteBuffer.allocate(2 + length);
+        buffer.put((byte) 0xFF).put((byte) MARKER_APP1).putShort((short) length).put(EXIF_HEADER);
+        return buffer.order(order);
+    }
+
+    /**
+     * Write IFD0 at the current position followed by the date, the Exif IFD and the GPS IFD. Old
+     * entries are merged in tag order with ours and keep their original values and offsets.
+     */
+    private void writeTags(ByteBuffer buffer, int tiffStart, byte[] jpeg, int oldEntries, int oldCount,
+                           int[] ifd0Tags, int ifd0Count, int nextIfd, int oldExifEntries, int oldExifCount) {
+        int ifdOffset = buffer.position() - tiffStart;
+        int dateTimeOffset = ifdOffset + ifdSize(ifd0Count);
+        int exifOffset = dateTimeOffset + DATE_TIME_LENGTH;
+        int exifCount = keptCount(jpeg, oldExifEntries, oldExifCount, EXIF_TAGS, buffer.order()) +
+                EXIF_TAGS.length;
+        int gpsOffset = exifOffset + ifdSize(exifCount);
+
+        buffer.putShort((short) ifd0Count);
+        int ourIndex = 0;
+        for (int i = 0; i <= oldCount; ++i) {
+            int oldTag = Integer.MAX_VALUE;
+            if (i < oldCount) {
+                oldTag = readShort(jpeg, oldEntries + i * ENTRY_SIZE, buffer.order());
+                if (contains(ifd0Tags, oldTag)) {
+                    continue;
+                }
+            }
+            for (; ourIndex < ifd0Tags.length && ifd0Tags[ourIndex] < oldTag; ++ourIndex) {
+                switch (ifd0Tags[ourIndex]) {
+                    case TAG_DATE_TIME:
+                        putEntry(buffer, TAG_DATE_TIME, TYPE_ASCII, DATE_TIME_LENGTH, dateTimeOffset);
+                        break;
+                    case TAG_EXIF_IFD:
+                        putEntry(buffer, TAG_EXIF_IFD, TYPE_LONG, 1, exifOffset);
+                        break;
+                    case TAG_GPS_IFD:
+                        putEntry(buffer, TAG_GPS_IFD, TYPE_LONG, 1, gpsOffset);
+                        break;
+                }
+            }
+            if (i < oldCount) {
+                buffer.put(jpeg, oldEntries + i * ENTRY_SIZE, ENTRY_SIZE);
+            }
+        }
+        buffer.putInt(nextIfd);
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(timeMillis);
+        putDate(buffer, calendar);
+        buffer.put((byte) ' ');
+        putTwoDigits(buffer, calendar.get(Calendar.HOUR_OF_DAY));
+        buffer.put((byte) ':');
+        putTwoDigits(buffer, calendar.get(Calendar.MINUTE));
+        buffer.put((byte) ':');
+        putTwoDigits(buffer, calendar.get(Calendar.SECOND));
+        buffer.put((byte) 0);
+
+        // The Exif IFD only gets the image number, the only tag in EXIF_TAGS
+        buffer.putShort((short) exifCount);
+        boolean numbered = false;
+        for (int i = 0; i <= oldExifCount; ++i) {
+            int oldTag = Integer.MAX_VALUE;
+            if (i < oldExifCount) {
+                oldTag = readShort(jpeg, oldExifEntries + i * ENTRY_SIZE, buffer.order());
+                if (oldTag == TAG_IMAGE_NUMBER) {
+                    continue;
+                }
+            }
+            if (!numbered && TAG_IMAGE_NUMBER < oldTag) {
+                putEntry(buffer, TAG_IMAGE_NUMBER, TYPE_LONG, 1, imageNumber);
+                numbered = true;
+            }
+            if (i < oldExifCount) {
+                buffer.put(jpeg, oldExifEntries + i * ENTRY_SIZE, ENTRY_SIZE);
+            }
+        }
+        buffer.putInt(0);
+
+        if (location != null) {
+            writeGpsIfd(buffer, gpsOffset);
+        }
+    }
+
+    private void writeGpsIfd(ByteBuffer buffer, int gpsOffset) {
+        boolean hasAltitude = location.hasAltitude();
+        int count = hasAltitude ? 9 : 7;
+        int dataOffset = gpsOffset + ifdSize(count);
+        int latitudeOffset = dataOffset;
+        int longitudeOffset = latitudeOffset + 24;
+        int altitudeOffset = longitudeOffset + 24;
+        int timeStampOffset = altitudeOffset + (hasAltitude ? 8 : 0);
+        int dateStampOffset = timeStampOffset + 24;
+
+        double latitude = location.getLatitude();
+        double longitude = location.getLongitude();
+
+        buffer.putShort((short) count);
+        putEntry(buffer, TAG_GPS_VERSION_ID, TYPE_BYTE, 4, 0x02020000);
+        putEntry(buffer, TAG_GPS_LATITUDE_REF, TYPE_ASCII, 2, (latitude >= 0 ? 'N' : 'S') << 24);
+        putEntry(buffer, TAG_GPS_LATITUDE, TYPE_RATIONAL, 3, latitudeOffset);
+        putEntry(buffer, TAG_GPS_LONGITUDE_REF, TYPE_ASCII, 2, (longitude >= 0 ? 'E' : 'W') << 24);
+        putEntry(buffer, TAG_GPS_LONGITUDE, TYPE_RATIONAL, 3, longitudeOffset);
+        if (hasAltitude) {
+            putEntry(buffer, TAG_GPS_ALTITUDE_REF, TYPE_BYTE, 1, (location.getAltitude() < 0 ? 1 : 0) << 24);
+            putEntry(buffer, TAG_GPS_ALTITUDE, TYPE_RATIONAL, 1, altitudeOffset);
+        }
+        putEntry(buffer, TAG_GPS_TIME_STAMP, TYPE_RATIONAL, 3, timeStampOffset);
+        putEntry(buffer, TAG_GPS_DATE_STAMP, TYPE_ASCII, DATE_STAMP_LENGTH, dateStampOffset);
+        buffer.putInt(0);
+
+        putDegrees(buffer, latitude);
+        putDegrees(buffer, longitude);
+        if (hasAltitude) {
+            buffer.putInt((int) Math.round(Math.abs(location.getAltitude()) * 100)).putInt(100);
+        }
+
+        // GPS time is UTC
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.setTimeInMillis(location.getTime());
+        buffer.putInt(utc.get(Calendar.HOUR_OF_DAY)).putInt(1);
+        buffer.putInt(utc.get(Calendar.MINUTE)).putInt(1);
+        buffer.putInt(utc.get(Calendar.SECOND)).putInt(1);
+        putDate(buffer, utc);
+        buffer.put((byte) 0).put((byte) 0);
+    }
+
+    /** Degrees, minutes and seconds as three rationals, seconds to 1/10000 */
+    private static void putDegrees(ByteBuffer buffer, double value) {
+        value = Math.abs(value);
+        int degrees = (int) value;
+        double minutesValue = (value - degrees) * 60;
+        int minutes = (int) minutesValue;
+        long seconds = Math.round((minutesValue - minutes) * 60 * SECONDS_DENOMINATOR);
+        if (seconds >= 60L * SECONDS_DENOMINATOR) {
+            seconds -= 60L * SECONDS_DENOMINATOR;
+            if (++minutes == 60) {
+                minutes = 0;
+                ++degrees;
+            }
+        }
+        buffer.putInt(degrees).putInt(1);
+        buffer.putInt(minutes).putInt(1);
+        buffer.putInt((int) seconds).putInt(SECONDS_DENOMINATOR);
+    }
+
+    /** "yyyy:MM:dd" */
+    private static void putDate(ByteBuffer buffer, Calendar calendar) {
+        int year = calendar.get(Calendar.YEAR);
+        putTwoDigits(buffer, year / 100);
+        putTwoDigits(buffer, year % 100);
+        buffer.put((byte) ':');
+        putTwoDigits(buffer, calendar.get(Calendar.MONTH) + 1);
+        buffer.put((byte) ':');
+        putTwoDigits(buffer, calendar.get(Calendar.DAY_OF_MONTH));
+    }
+
+    private static void putTwoDigits(ByteBuffer buffer, int value) {
+        buffer.put((byte) ('0' + value / 10)).put((byte) ('0' + value % 10));
+    }
+
+    /**
+     * Values of 4 bytes or less are stored in the entry itself, left aligned: callers pass them in
+     * the high bytes so the layout is the same for both byte orders.
+     */
+    private static void putEntry(ByteBuffer buffer, int tag, int type, int count, int value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(count);
+        if ((type == TYPE_BYTE || type == TYPE_ASCII) && count <= 4) {
+            buffer.put((byte) (value >>> 24)).put((byte) (value >>> 16))
+                    .put((byte) (value >>> 8)).put((byte) value);
+        } else {
+            buffer.putInt(value);
+        }
+    }
+
+    /** IFD0 tags we write, in tag order; the camera's entries with these tags are dropped */
+    private int[] ourIfd0Tags() {
+        return location != null ? IFD0_TAGS_WITH_GPS : IFD0_TAGS;
+    }
+
+    private int gpsSize() {
+        if (location == null) {
+            return 0;
+        }
+        int count = location.hasAltitude() ? 9 : 7;
+        return ifdSize(count) + 24 + 24 + (location.hasAltitude() ? 8 : 0) + 24 + DATE_STAMP_LENGTH + 1;
+    }
+
+    private static int ifdSize(int count) {
+        return 2 + count * ENTRY_SIZE + 4;
+    }
+
+    /** Entries of an IFD that are not replaced by one of ours */
+    private static int keptCount(byte[] jpeg, int entries, int count, int[] ourTags, ByteOrder order) {
+        int kept = 0;
+        for (int i = 0; i < count; ++i) {
+            if (!contains(ourTags, readShort(jpeg, entries + i * ENTRY_SIZE, order))) {
+                ++kept;
+            }
+        }
+        return kept;
+    }
+
+    private static boolean contains(int[] tags, int tag) {
+        for (int t : tags) {
+            if (t == tag) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int readShort(byte[] data, int offset, ByteOrder order) {
+        if (order == ByteOrder.BIG_ENDIAN) {
+            return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+        }
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+}
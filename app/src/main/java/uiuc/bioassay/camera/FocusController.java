@@ -0,0 +1,198 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Touch to focus without piling up focus cycles.
+ * <p/>
+ * A tap while a focus is running is not applied at once but remembered, replacing any earlier
+ * remembered tap, and run when the current focus completes. So a burst of taps costs one extra
+ * focus cycle, not one cancelled cycle per tap. The areas, lists and callbacks are allocated once.
+ * <p/>
+ * Must be used on the main thread, which is where the camera delivers focus callbacks.
+ */
+@SuppressWarnings("deprecation")
+public class FocusController implements Camera.AutoFocusCallback {
+    private static final String TAG = "FOCUS CONTROLLER";
+
+    /** Side of the focus area in camera area units, which span -1000 to 1000 */
+    private static final int FOCUS_AREA_SIZE = 200;
+    /** The metering area is this much larger than the focus area */
+    private static final float METERING_SCALE = 1.8f;
+    private static final int AREA_WEIGHT = 1000;
+    /** Some devices never call back, treat a focus running this long as failed */
+    private static final long FOCUS_TIMEOUT_MS = 3000;
+
+    /** Called on the main thread when a focus started by the controller finishes */
+    public interface Listener {
+        void onFocusFinished(boolean success);
+    }
+
+    private final Camera camera;
+    private final CameraSettings settings;
+    private final Listener listener;
+    private final Handler handler = new Handler();
+
+    private final Camera.Area focusArea = new Camera.Area(new Rect(), AREA_WEIGHT);
+    private final Camera.Area meteringArea = new Camera.Area(new Rect(), AREA_WEIGHT);
+    private final List<Camera.Area> focusAreas = new ArrayList<>(1);
+    private final List<Camera.Area> meteringAreas = new ArrayList<>(1);
+
+    private boolean focusing = false;
+    private boolean pending = false;
+    private float pendingX;
+    private float pendingY;
+    private long focusStartNs;
+    private boolean released = false;
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.d(TAG, "Focus timed out");
+            try {
+                camera.cancelAutoFocus();
+            } catch (RuntimeException e) {
+                Log.d(TAG, "Error cancelling focus: " + e.getMessage());
+            }
+            onAutoFocus(false, camera);
+        }
+    };
+
+    public FocusController(Camera camera, CameraSettings settings, Listener listener) {
+        this.camera = camera;
+        this.settings = settings;
+        this.listener = listener;
+        focusAreas.add(focusArea);
+        meteringAreas.add(meteringArea);
+    }
+
+    /**
+     * Focus and meter on a point given as fractions of the camera frame, 0 to 1 in each direction,
+     * before the display rotation: camera areas are in sensor coordinates.
+     * Runs now if the camera is idle, otherwise after the running focus.
+     */
+    public void requestFocus(float x, float y) {
+        if (released) {
+            return;
+        }
+        if (focusing) {
+            pending = true;
+            pendingX = x;
+            pendingY = y;
+            return;
+        }
+        start(x, y);
+    }
+
+    /** Stop reacting to callbacks, call before the camera is released */
+    public void release() {
+        released = true;
+        pending = false;
+        handler.removeCallbacks(timeout);
+    }
+
+    @Override
+    public void onAutoFocus(boolean success, Camera camera) {
+        if (released || !focusing) {
+            return;
+        }
+        handler.removeCallbacks(timeout);
+        focusing = false;
+        CaptureMetrics.getInstance().get(CaptureMetrics.FOCUS).recordSince(focusStartNs);
+        if (pending) {
+            // The finished focus was for an older tap, only report the latest one
+            pending = false;
+            start(pendingX, pendingY);
+            return;
+        }
+        listener.onFocusFinished(success);
+    }
+
+    private void start(float x, float y) {
+        int centerX = (int) (x * 2000 - 1000);
+        int centerY = (int) (y * 2000 - 1000);
+        try {
+            if (settings.getMaxNumFocusAreas() > 0) {
+                setArea(focusArea.rect, centerX, centerY, FOCUS_AREA_SIZE);
+                settings.setFocusAreas(focusAreas);
+            }
+            if (settings.getMaxNumMeteringAreas() > 0) {
+                setArea(meteringArea.rect, centerX, centerY, (int) (FOCUS_AREA_SIZE * METERING_SCALE));
+                settings.setMeteringAreas(meteringAreas);
+            }
+            // Only pushed if the areas moved
+            settings.apply();
+
+            focusing = true;
+            focusStartNs = System.nanoTime();
+            handler.postDelayed(timeout, FOCUS_TIMEOUT_MS);
+            camera.autoFocus(this);
+        } catch (RuntimeException e) {
+            Log.d(TAG, "Error starting focus: " + e.getMessage());
+            focusing = false;
+            handler.removeCallbacks(timeout);
+            listener.onFocusFinished(false);
+        }
+    }
+
+    /** Square of {@code size} around the center, clamped to the camera area range */
+    private static void setArea(Rect rect, int centerX, int centerY, int size) {
+        int left = clamp(centerX - size / 2, -1000, 1000);
+        int right = clamp(left + size, -1000, 1000);
+        int top = clamp(centerY - size / 2, -1000, 1000);
+        int bottom = clamp(top + size, -1000, 1000);
+        rect.set(left, top, right, bottom);
+    }
+
+    private static int clamp(int x, int min, int max) {
+        return x < min ? min : (x > max ? max : x);
+    }
+}
@@ -0,0 +1,518 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Averages the frames of a burst on the device.
+ * <p/>
+ * Frames are accumulated into per channel int sums as they arrive, the work on each frame split
+ * into row stripes across all cores. When the burst ends the mean is saved as a float file (see
+ * {@link #MEAN_MAGIC}), keeping the precision gained by averaging, with an 8 bit PNG of it as a
+ * preview, and if enabled the per pixel variance as a float file (see {@link #VARIANCE_MAGIC}).
+ * With a {@link Calibration} set, all are dark frame and flat field corrected when references of
+ * the frame size exist, and a stack can be saved as a new reference instead. A
+ * {@link ColorCorrection} is applied to the mean after that. The corrections are computed in row
+ * stripes too, straight into the mapped output files.
+ * <p/>
+ * All work happens on the stacker's own thread in the order the calls were made.
+ */
+public class FrameStacker {
+    private static final String TAG = "FRAME STACKER";
+
+    /**
+     * Variance files start with this, then width and height as ints, then width * height * 3
+     * floats in R, G, B order per pixel. Little endian throughout.
+     */
+    public static final int VARIANCE_MAGIC = 0x31524156; // "VAR1"
+
+    /** Mean files have the layout of variance files, starting with this instead */
+    public static final int MEAN_MAGIC = 0x3141454d; // "MEA1"
+
+    /** Called on the main thread once a stack has been saved */
+    public interface Listener {
+        /**
+         * @param meanFile    the float mean, or the reference file; null if saving failed
+         * @param previewFile 8 bit PNG of the mean, null for references or if it was not saved
+         */
+        void onStackSaved(File meanFile, File previewFile, File varianceFile, int frameCount);
+    }
+
+    private final boolean computeVariance;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler;
+    private final ParallelStripes stripes = ParallelStripes.getInstance();
+
+    // Only touched on the stacker thread
+    private File outputBase;
+    private Listener listener;
+    private int width;
+    private int height;
+    private int frameCount;
+    private int[] pixels;
+    private int[] sum;
+    private int[] sumSquares;
+    private Bitmap decodeBitmap;
+    private Calibration calibration;
+    // Kind of reference the current stack is recorded as, -1 for a normal stack
+    private int referenceKind = -1;
+    // Whether saveMean() and saveVariance() correct with the calibration
+    private boolean corrected;
+    private ColorCorrection colorCorrection;
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+
+    // Source of the frame being accumulated, read by the stripe workers
+    private byte[] nv21;
+    private final ParallelStripes.StripeTask accumulateArgb = new ParallelStripes.StripeTask() {
+        @Override
+        public void run(int stripe, int startRow, int endRow) {
+            for (int i = startRow * width; i < endRow * width; ++i) {
+                accumulate(i, pixels[i]);
+            }
+        }
+    };
+    private final ParallelStripes.StripeTask accumulateNv21 = new ParallelStripes.StripeTask() {
+        @Override
+        public void run(int stripe, int startRow, int endRow) {
+            for (int y = startRow; y < endRow; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    int c = Nv21.chromaIndex(width, height, x, y);
+                    accumulate(y * width + x,
+                            Nv21.toArgb(nv21[y * width + x] & 0xFF, nv21[c + 1] & 0xFF, nv21[c] & 0xFF));
+                }
+            }
+        }
+    };
+
+    private int meanCount;
+    private final ParallelStripes.StripeTask meanTask = new ParallelStripes.StripeTask() {
+        @Override
+        public void run(int stripe, int startRow, int endRow) {
+            float n = meanCount;
+            for (int i = startRow * width, j = i * 3; i < endRow * width; ++i, j += 3) {
+                if (corrected) {
+                    pixels[i] = 0xff000000 |
+                            (toByte(calibration.correct(j, sum[j] / n)) << 16) |
+                            (toByte(calibration.correct(j + 1, sum[j + 1] / n)) << 8) |
+                            toByte(calibration.correct(j + 2, sum[j + 2] / n));
+                } else {
+                    pixels[i] = 0xff000000 |
+                            (toByte(sum[j] / n) << 16) |
+                            (toByte(sum[j + 1] / n) << 8) |
+                            toByte(sum[j + 2] / n);
+                }
+            }
+            if (colorCorrection != null) {
+                colorCorrection.apply(pixels, startRow * width, endRow * width);
+            }
+        }
+    };
+
+    // Float file being filled by floatTask, and whether it gets the variance instead of the mean
+    private FloatBuffer floatOut;
+    private boolean floatVariance;
+    private final ParallelStripes.StripeTask floatTask = new ParallelStripes.StripeTask() {
+        @Override
+        public void run(int stripe, int startRow, int endRow) {
+            float n = meanCount;
+            FloatBuffer out = floatOut;
+            for (int j = startRow * width * 3; j < endRow * width * 3; ++j) {
+                out.put(j, floatVariance ? varianceAt(j, n) : meanAt(j, n));
+            }
+        }
+    };
+
+    /**
+     * @param sampleSize      JPEG frames are decoded at 1/sampleSize of their size, which bounds the
+     *                        memory used by the sums (12 bytes per pixel, 24 with variance)
+     * @param computeVariance also save the per pixel variance
+     */
+    public FrameStacker(int sampleSize, boolean computeVariance) {
+        this.computeVariance = computeVariance;
+        thread = new HandlerThread("FrameStacker", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        mainHandler = new Handler(Looper.getMainLooper());
+        decodeOptions.inSampleSize = sampleSize;
+        decodeOptions.inMutable = true;
+        decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Start a new stack.
+     *
+     * @param outputBase path of the results without extension, ".mean", ".png" and ".var" are
+     *                   appended
+     */
+    public void begin(final File outputBase, final Listener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                FrameStacker.this.outputBase = outputBase;
+                FrameStacker.this.listener = listener;
+                referenceKind = -1;
+                frameCount = 0;
+            }
+        });
+    }
+
+    /**
+     * Start a stack that is saved as a calibration reference. Needs a calibration, see
+     * {@link #setCalibration}; the listener gets the reference file as the mean file.
+     *
+     * @param kind {@link Calibration#DARK} or {@link Calibration#FLAT}
+     */
+    public void beginReference(final int kind, final Listener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                outputBase = null;
+                FrameStacker.this.listener = listener;
+                referenceKind = kind;
+                frameCount = 0;
+            }
+        });
+    }
+
+    /** Correct stacks with these references from now on, null to stop correcting */
+    public void setCalibration(final Calibration calibration) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                FrameStacker.this.calibration = calibration;
+            }
+        });
+    }
+
+    /** Add a JPEG frame. The data must not be modified afterwards. */
+    public void addJpeg(final byte[] jpeg) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = decode(jpeg);
+                if (bitmap == null || !prepare(bitmap.getWidth(), bitmap.getHeight())) {
+                    return;
+                }
+                bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+                stripes.run(height, accumulateArgb);
+                ++frameCount;
+            }
+        });
+    }
+
+    /** Add an NV21 frame, e.g. from the preview. The data must not be modified afterwards. */
+    public void addNv21(final byte[] data, final int frameWidth, final int frameHeight) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!prepare(frameWidth, frameHeight)) {
+                    return;
+                }
+                nv21 = data;
+                stripes.run(height, accumulateNv21);
+                nv21 = null;
+                ++frameCount;
+            }
+        });
+    }
+
+    /**
+     * Run {@code callback} on the main thread once the frames added so far have been accumulated,
+     * e.g. to reuse their buffers
+     */
+    public void afterQueuedFrames(final Runnable callback) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                mainHandler.post(callback);
+            }
+        });
+    }
+
+    /** Colour correct stacks from now on, null to stop */
+    public void setColorCorrection(final ColorCorrection colorCorrection) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                FrameStacker.this.colorCorrection = colorCorrection;
+            }
+        });
+    }
+
+    /** Delete the calibration references, stacks are no longer corrected until new ones are recorded */
+    public void clearCalibration() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (calibration != null) {
+                    calibration.delete(Calibration.DARK);
+                    calibration.delete(Calibration.FLAT);
+                }
+            }
+        });
+    }
+
+    /** Save the stack of the frames added since {@link #begin} */
+    public void finish() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /** Stop the stacker thread once the work already posted is done */
+    public void quit() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                thread.quit();
+            }
+        });
+    }
+
+    private Bitmap decode(byte[] jpeg) {
+        // Decode into the previous bitmap when possible, it only works for frames of the same size
+        decodeOptions.inBitmap = decodeBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, decodeOptions);
+        } catch (IllegalArgumentException e) {
+            decodeOptions.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, decodeOptions);
+        }
+        if (bitmap == null) {
+            Log.d(TAG, "Error decoding frame");
+            return null;
+        }
+        decodeBitmap = bitmap;
+        return bitmap;
+    }
+
+    /** Size the sums for the first frame of a stack, later frames must have the same size */
+    private boolean prepare(int frameWidth, int frameHeight) {
+        if (frameCount > 0) {
+            if (frameWidth != width || frameHeight != height) {
+                Log.d(TAG, "Skipping frame of different size " + frameWidth + "x" + frameHeight);
+                return false;
+            }
+            return true;
+        }
+        int size = frameWidth * frameHeight;
+        if (sum == null || sum.length != size * 3) {
+            pixels = new int[size];
+            sum = new int[size * 3];
+            sumSquares = computeVariance ? new int[size * 3] : null;
+        } else {
+            Arrays.fill(sum, 0);
+            if (sumSquares != null) {
+                Arrays.fill(sumSquares, 0);
+            }
+        }
+        width = frameWidth;
+        height = frameHeight;
+        return true;
+    }
+
+    private static int toByte(float value) {
+        int rounded = Math.round(value);
+        return rounded < 0 ? 0 : (rounded > 255 ? 255 : rounded);
+    }
+
+    private void accumulate(int i, int argb) {
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        int j = i * 3;
+        sum[j] += r;
+        sum[j + 1] += g;
+        sum[j + 2] += b;
+        if (sumSquares != null) {
+            sumSquares[j] += r * r;
+            sumSquares[j + 1] += g * g;
+            sumSquares[j + 2] += b * b;
+        }
+    }
+
+    private void save() {
+        final int count = frameCount;
+        final Listener done = listener;
+        File meanFile = null;
+        File previewFile = null;
+        File varianceFile = null;
+        if (count > 0 && referenceKind >= 0 && calibration != null) {
+            try {
+                calibration.record(referenceKind, width, height, sum, count);
+                meanFile = calibration.getFile(referenceKind);
+            } catch (IOException e) {
+                Log.d(TAG, "Error saving reference: " + e.getMessage());
+            }
+        } else if (count > 0 && outputBase != null) {
+            // References are mapped lazily, on the first stack that needs them
+            corrected = calibration != null && calibration.prepare(width, height);
+            meanFile = new File(outputBase.getPath() + ".mean");
+            if (!saveFloats(meanFile, MEAN_MAGIC, count)) {
+                meanFile = null;
+            }
+            previewFile = new File(outputBase.getPath() + ".png");
+            if (!savePreview(previewFile, count)) {
+                previewFile = null;
+            }
+            if (sumSquares != null) {
+                varianceFile = new File(outputBase.getPath() + ".var");
+                if (!saveFloats(varianceFile, VARIANCE_MAGIC, count)) {
+                    varianceFile = null;
+                }
+            }
+        }
+        frameCount = 0;
+        outputBase = null;
+        listener = null;
+        referenceKind = -1;
+
+        if (done != null) {
+            final File savedMean = meanFile;
+            final File savedPreview = previewFile;
+            final File savedVariance = varianceFile;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    done.onStackSaved(savedMean, savedPreview, savedVariance, count);
+                }
+            });
+        }
+    }
+
+    private boolean savePreview(File file, int count) {
+        meanCount = count;
+        stripes.run(height, meanTask);
+        Bitmap bitmap = decodeBitmap != null && decodeBitmap.getWidth() == width &&
+                decodeBitmap.getHeight() == height ? decodeBitmap :
+                Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Error saving preview: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Save the mean or, with {@link #VARIANCE_MAGIC}, the variance, corrected like the preview */
+    private boolean saveFloats(File file, int magic, int count) {
+        int length = 12 + width * height * 3 * 4;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(length);
+                // Written in place by the stripe workers, each to its own rows
+                MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                map.putInt(magic).putInt(width).putInt(height);
+                floatOut = map.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                floatVariance = magic == VARIANCE_MAGIC;
+                meanCount = count;
+                stripes.run(height, floatTask);
+            } finally {
+                floatOut = null;
+                raf.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Error saving " + file.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private float meanAt(int j, float n) {
+        float mean = sum[j] / n;
+        if (corrected) {
+            mean = calibration.correct(j, mean);
+        }
+        if (colorCorrection != null) {
+            mean = colorCorrection.correct(j % 3, mean);
+        }
+        return mean;
+    }
+
+    private float varianceAt(int j, float n) {
+        float mean = sum[j] / n;
+        float variance = Math.max(0f, sumSquares[j] / n - mean * mean);
+        if (corrected) {
+            float gain = calibration.gain(j);
+            variance *= gain * gain;
+        }
+        if (colorCorrection != null) {
+            float gain = colorCorrection.getGain(j % 3);
+            variance *= gain * gain;
+        }
+        return variance;
+    }
+}
@@ -0,0 +1,314 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Merges an exposure bracketed burst into one linear radiance image on the device.
+ * <p/>
+ * Each frame is linearised through a table of the sRGB curve and divided by its relative exposure,
+ * then added into per pixel sums weighted by how well exposed the pixel is: a hat function of its
+ * brightest channel, so noisy pixels near black and pixels with a clipped channel barely count.
+ * Both curves are 256 entry tables computed once, and the work on each frame is split into row
+ * stripes across all cores. Where every frame is clipped the result is an underestimate.
+ * <p/>
+ * The result is saved as a float file (see {@link #RADIANCE_MAGIC}) in units of the linear value of
+ * a full scale pixel at relative exposure 1, so values above 1 are beyond the range of that shot.
+ * All work happens on the merger's own thread in the order the calls were made.
+ */
+public class HdrMerger {
+    private static final String TAG = "HDR MERGER";
+
+    /**
+     * Radiance files start with this, then width and height as ints, then width * height * 3
+     * floats in R, G, B order per pixel. Little endian throughout.
+     */
+    public static final int RADIANCE_MAGIC = 0x31524448; // "HDR1"
+
+    /** Weight of the worst exposed pixels, so a pixel clipped in every frame still gets a value */
+    private static final float MIN_WEIGHT = 1e-3f;
+
+    /** Linear value of each 8 bit level, assuming the camera encodes with the sRGB curve */
+    private static final float[] LINEAR = new float[256];
+    /** Weight of a pixel by the level of its brightest channel */
+    private static final float[] WEIGHT = new float[256];
+
+    static {
+        for (int v = 0; v < 256; ++v) {
+            double c = v / 255.0;
+            LINEAR[v] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+            WEIGHT[v] = Math.max(MIN_WEIGHT, 1 - Math.abs(2 * v - 255) / 255f);
+        }
+    }
+
+    /** Called on the main thread once a merge has been saved */
+    public interface Listener {
+        /** @param file null if nothing was saved */
+        void onMergeSaved(File file, int frameCount);
+    }
+
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler;
+    private final ParallelStripes stripes = ParallelStripes.getInstance();
+    private final BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+
+    // Only touched on the merger thread
+    private File outputBase;
+    private Listener listener;
+    private int width;
+    private int height;
+    private int frameCount;
+    private int[] pixels;
+    private float[] radianceSum;
+    private float[] weightSum;
+    private Bitmap decodeBitmap;
+
+    // Reciprocal exposure of the frame being merged, read by the stripe workers
+    private float frameScale;
+    private final ParallelStripes.StripeTask mergeTask = new ParallelStripes.StripeTask() {
+        @Override
+        public void run(int stripe, int startRow, int endRow) {
+            float[] linear = LINEAR;
+            float[] weights = WEIGHT;
+            float scale = frameScale;
+            for (int i = startRow * width, j = i * 3; i < endRow * width; ++i, j += 3) {
+                int argb = pixels[i];
+                int r = (argb >> 16) & 0xFF;
+                int g = (argb >> 8) & 0xFF;
+                int b = argb & 0xFF;
+                float w = weights[Math.max(r, Math.max(g, b))];
+                float ws = w * scale;
+                radianceSum[j] += ws * linear[r];
+                radianceSum[j + 1] += ws * linear[g];
+                radianceSum[j + 2] += ws * linear[b];
+                weightSum[i] += w;
+            }
+        }
+    };
+
+    /**
+     * @param sampleSize JPEG frames are decoded at 1/sampleSize of their size, which bounds the
+     *                   memory used by the sums (16 bytes per pixel)
+     */
+    public HdrMerger(int sampleSize) {
+        thread = new HandlerThread("HdrMerger", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        mainHandler = new Handler(Looper.getMainLooper());
+        decodeOptions.inSampleSize = sampleSize;
+        decodeOptions.inMutable = true;
+        decodeOptions.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Start a new merge.
+     *
+     * @param outputBase path of the result without extension, ".hdrf" is appended
+     */
+    public void begin(final File outputBase, final Listener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                HdrMerger.this.outputBase = outputBase;
+                HdrMerger.this.listener = listener;
+                frameCount = 0;
+            }
+        });
+    }
+
+    /**
+     * Add a JPEG frame. The data must not be modified afterwards.
+     *
+     * @param exposure exposure relative to the others, e.g. 2^EV of its exposure compensation
+     */
+    public void addJpeg(final byte[] jpeg, final float exposure) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = decode(jpeg);
+                if (bitmap == null || !prepare(bitmap.getWidth(), bitmap.getHeight())) {
+                    return;
+                }
+                bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+                frameScale = 1 / exposure;
+                stripes.run(height, mergeTask);
+                ++frameCount;
+            }
+        });
+    }
+
+    /** Save the merge of the frames added since {@link #begin} */
+    public void finish() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /** Stop the merger thread once the work already posted is done */
+    public void quit() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                thread.quit();
+            }
+        });
+    }
+
+    private Bitmap decode(byte[] jpeg) {
+        // Decode into the previous bitmap when possible, it only works for frames of the same size
+        decodeOptions.inBitmap = decodeBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, decodeOptions);
+        } catch (IllegalArgumentException e) {
+            decodeOptions.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, decodeOptions);
+        }
+        if (bitmap == null) {
+            Log.d(TAG, "Error decoding frame");
+            return null;
+        }
+        decodeBitmap = bitmap;
+        return bitmap;
+    }
+
+    /** Size the sums for the first frame of a merge, later frames must have the same size */
+    private boolean prepare(int frameWidth, int frameHeight) {
+        if (frameCount > 0) {
+            if (frameWidth != width || frameHeight != height) {
+                Log.d(TAG, "Skipping frame of different size " + frameWidth + "x" + frameHeight);
+                return false;
+            }
+            return true;
+        }
+        int size = frameWidth * frameHeight;
+        if (weightSum == null || weightSum.length != size) {
+            pixels = new int[size];
+            radianceSum = new float[size * 3];
+            weightSum = new float[size];
+        } else {
+            Arrays.fill(radianceSum, 0);
+            Arrays.fill(weightSum, 0);
+        }
+        width = frameWidth;
+        height = frameHeight;
+        return true;
+    }
+
+    private void save() {
+        final int count = frameCount;
+        final Listener done = listener;
+        File file = null;
+        if (count > 0 && outputBase != null) {
+            file = new File(outputBase.getPath() + ".hdrf");
+            if (!saveRadiance(file)) {
+                file = null;
+            }
+        }
+        frameCount = 0;
+        outputBase = null;
+        listener = null;
+
+        if (done != null) {
+            final File saved = file;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    done.onMergeSaved(saved, count);
+                }
+            });
+        }
+    }
+
+    private boolean saveRadiance(File file) {
+        ByteBuffer row = ByteBuffer.allocateDirect(width * 3 * 4).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(RADIANCE_MAGIC).putInt(width).putInt(height).flip();
+                channel.write(header);
+                for (int y = 0; y < height; ++y) {
+                    row.clear();
+                    for (int i = y * width, j = i * 3; i < (y + 1) * width; ++i, j += 3) {
+                        float w = weightSum[i];
+                        row.putFloat(radianceSum[j] / w);
+                        row.putFloat(radianceSum[j + 1] / w);
+                        row.putFloat(radianceSum[j + 2] / w);
+                    }
+                    row.flip();
+                    while (row.hasRemaining()) {
+                        channel.write(row);
+                    }
+                }
+                raf.setLength(channel.position());
+            } finally {
+                raf.close();
+            }
+            return true;
+        } catch (IOException e) {
+            Log.d(TAG, "Error saving radiance: " + e.getMessage());
+            return false;
+        }
+    }
+}
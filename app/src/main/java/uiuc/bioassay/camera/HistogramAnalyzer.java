@@ -0,0 +1,176 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import java.util.Arrays;
+
+/**
+ * Histograms of every preview frame, to see whether the locked exposure clips the signal.
+ * <p/>
+ * Luma is counted for every pixel of the Y plane, R, G and B at chroma resolution, one converted
+ * pixel per 2x2 block. The frame is split into row stripes on the preview instance of
+ * {@link ParallelStripes}, where a stack or HDR merge in progress cannot hold up the frame. Each
+ * stripe counts into its own bins, so the workers never share a counter, and the bins are summed
+ * once all stripes are done. Bins are allocated in {@link #onPreviewSizeChanged}, so a frame does
+ * not allocate.
+ */
+public class HistogramAnalyzer implements FrameAnalyzer {
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+    public static final int LUMA = 3;
+    public static final int CHANNELS = 4;
+    public static final int BINS = 256;
+    /** Levels at or above this count as clipped, processing seldom leaves saturated pixels at 255 */
+    public static final int CLIP_LEVEL = 250;
+
+    /** Counts of one frame, {@link #BINS} per channel in R, G, B, luma order */
+    public static class Histogram {
+        public final int[] bins = new int[CHANNELS * BINS];
+        /** Pixels counted for each of R, G and B */
+        public int rgbSamples;
+        /** Pixels counted for luma */
+        public int lumaSamples;
+        public long timestampNs;
+
+        public void set(Histogram other) {
+            System.arraycopy(other.bins, 0, bins, 0, bins.length);
+            rgbSamples = other.rgbSamples;
+            lumaSamples = other.lumaSamples;
+            timestampNs = other.timestampNs;
+        }
+
+        public int count(int channel, int level) {
+            return bins[channel * BINS + level];
+        }
+
+        /** Fraction of a channel's pixels at or above {@link #CLIP_LEVEL} */
+        public float clippedFraction(int channel) {
+            int samples = channel == LUMA ? lumaSamples : rgbSamples;
+            if (samples == 0) {
+                return 0;
+            }
+            int clipped = 0;
+            for (int level = CLIP_LEVEL; level < BINS; ++level) {
+                clipped += bins[channel * BINS + level];
+            }
+            return (float) clipped / samples;
+        }
+    }
+
+    /** Called on the preview processor thread after each frame */
+    public interface Listener {
+        void onHistogram(HistogramAnalyzer analyzer, Histogram histogram);
+    }
+
+    private final Listener listener;
+    private final ParallelStripes stripes = ParallelStripes.getPreviewInstance();
+
+    // Only touched on the processor thread, and by the stripe workers during a run
+    private int width;
+    private int height;
+    private int[][] stripeBins;
+    private byte[] data;
+    private final Histogram histogram = new Histogram();
+
+    private final ParallelStripes.StripeTask countTask = new ParallelStripes.StripeTask() {
+        @Override
+        public void run(int stripe, int startRow, int endRow) {
+            // Rows here are rows of 2x2 blocks. The bins were left zeroed by the last merge.
+            int[] bins = stripeBins[stripe];
+            byte[] data = HistogramAnalyzer.this.data;
+            int width = HistogramAnalyzer.this.width;
+            int height = HistogramAnalyzer.this.height;
+            int lumaBase = LUMA * BINS;
+            for (int by = startRow; by < endRow; ++by) {
+                int y = by * 2;
+                int rowEnd = Math.min(y + 2, height) * width;
+                for (int i = y * width; i < rowEnd; ++i) {
+                    ++bins[lumaBase + (data[i] & 0xFF)];
+                }
+                for (int x = 0; x + 1 < width; x += 2) {
+                    int c = Nv21.chromaIndex(width, height, x, y);
+                    int argb = Nv21.toArgb(data[y * width + x] & 0xFF, data[c + 1] & 0xFF, data[c] & 0xFF);
+                    ++bins[(argb >> 16) & 0xFF];
+                    ++bins[BINS + ((argb >> 8) & 0xFF)];
+                    ++bins[2 * BINS + (argb & 0xFF)];
+                }
+            }
+        }
+    };
+
+    public HistogramAnalyzer(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onPreviewSizeChanged(int width, int height) {
+        this.width = width;
+        this.height = height;
+        stripeBins = new int[stripes.getStripeCount()][CHANNELS * BINS];
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        if (stripeBins == null || frame.width != width || frame.height != height) {
+            return;
+        }
+        data = frame.data;
+        stripes.run((height + 1) / 2, countTask);
+        data = null;
+
+        // Zero the stripe bins while merging, a stripe with no rows is not run and must count nothing
+        int[] merged = histogram.bins;
+        Arrays.fill(merged, 0);
+        for (int[] bins : stripeBins) {
+            for (int i = 0; i < merged.length; ++i) {
+                merged[i] += bins[i];
+                bins[i] = 0;
+            }
+        }
+        histogram.rgbSamples = ((height + 1) / 2) * (width / 2);
+        histogram.lumaSamples = width * height;
+        histogram.timestampNs = frame.getTimestampNs();
+        listener.onHistogram(this, histogram);
+    }
+}
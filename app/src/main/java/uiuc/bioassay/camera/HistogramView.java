@@ -0,0 +1,129 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Compact overlay of a {@link HistogramAnalyzer.Histogram}: R, G, B and luma as lines over a dark
+ * background, with the clipping levels marked.
+ * <p/>
+ * Heights are the square root of the counts, so small populations such as a bright assay spot
+ * stay visible next to the background peak, and are scaled to the highest unclipped bin so a spike
+ * of clipped pixels does not flatten the rest; clipped bins are drawn at full height. The counts
+ * and line points live in arrays allocated once, each channel is drawn with one drawLines call.
+ */
+public class HistogramView extends View {
+    private static final int CHANNELS = HistogramAnalyzer.CHANNELS;
+    private static final int BINS = HistogramAnalyzer.BINS;
+    private static final int[] COLORS = {0xffff5252, 0xff69f0ae, 0xff448aff, 0xffe0e0e0};
+
+    private final int[] bins = new int[CHANNELS * BINS];
+    private boolean hasHistogram = false;
+    private final float[] lines = new float[(BINS - 1) * 4];
+    private final Paint[] paints = new Paint[CHANNELS];
+    private final Paint backgroundPaint;
+    private final Paint clipPaint;
+
+    public HistogramView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        for (int c = 0; c < CHANNELS; ++c) {
+            paints[c] = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paints[c].setColor(COLORS[c]);
+            paints[c].setStrokeWidth(2);
+        }
+        backgroundPaint = new Paint();
+        backgroundPaint.setColor(0x88000000);
+        clipPaint = new Paint();
+        clipPaint.setColor(0x66ff0000);
+    }
+
+    /** Show a histogram, it is copied */
+    public void setHistogram(HistogramAnalyzer.Histogram histogram) {
+        System.arraycopy(histogram.bins, 0, bins, 0, bins.length);
+        hasHistogram = true;
+        invalidate();
+    }
+
+    @Override
+    public void onDraw(Canvas canvas) {
+        float width = getWidth();
+        float height = getHeight();
+        canvas.drawRect(0, 0, width, height, backgroundPaint);
+        float clipX = width * HistogramAnalyzer.CLIP_LEVEL / (BINS - 1);
+        canvas.drawRect(clipX, 0, width, height, clipPaint);
+        if (!hasHistogram) {
+            return;
+        }
+
+        int highest = 1;
+        for (int c = 0; c < CHANNELS; ++c) {
+            for (int level = 0; level < HistogramAnalyzer.CLIP_LEVEL; ++level) {
+                highest = Math.max(highest, bins[c * BINS + level]);
+            }
+        }
+        float scale = height / (float) Math.sqrt(highest);
+        float step = width / (BINS - 1);
+        for (int c = 0; c < CHANNELS; ++c) {
+            float previousY = y(bins[c * BINS], scale, height);
+            for (int level = 1; level < BINS; ++level) {
+                float currentY = y(bins[c * BINS + level], scale, height);
+                int k = (level - 1) * 4;
+                lines[k] = (level - 1) * step;
+                lines[k + 1] = previousY;
+                lines[k + 2] = level * step;
+                lines[k + 3] = currentY;
+                previousY = currentY;
+            }
+            canvas.drawLines(lines, paints[c]);
+        }
+    }
+
+    private static float y(int count, float scale, float height) {
+        return Math.max(0, height - (float) Math.sqrt(count) * scale);
+    }
+}
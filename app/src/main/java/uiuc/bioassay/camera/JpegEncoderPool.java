@@ -0,0 +1,225 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Compresses NV21 frames to JPEG on several threads.
+ * <p/>
+ * {@link #encode} returns at once with an {@link Encoding} to wait on. Frames are picked up in the
+ * order they were handed in but finish in any order, so a consumer that waits on the encodings in
+ * the order it created them gets the results in that order while later frames keep compressing.
+ * <p/>
+ * Output goes into a fixed set of streams that are handed back with {@link Encoding#release} and
+ * reused, so once they have grown to the frame size no further buffers are allocated. Streams are
+ * handed out in the order frames were submitted, so waiting on the oldest encoding always makes
+ * progress even when every stream is taken.
+ */
+public class JpegEncoderPool {
+    private static final String TAG = "JPEG ENCODER";
+
+    /** Reused output buffer, exposed so results can be written without a copy */
+    private static class JpegStream extends ByteArrayOutputStream {
+        private byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /** One frame being compressed */
+    public class Encoding {
+        private final byte[] nv21;
+        private final int width;
+        private final int height;
+        private JpegStream stream;
+        private boolean done = false;
+        private boolean success = false;
+        private boolean released = false;
+
+        private Encoding(byte[] nv21, int width, int height) {
+            this.nv21 = nv21;
+            this.width = width;
+            this.height = height;
+        }
+
+        /** Block until the frame is compressed, returns false if compression failed */
+        public synchronized boolean await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+            return success;
+        }
+
+        /** The JPEG, valid in the first {@link #getLength()} bytes until {@link #release} */
+        public byte[] getData() {
+            return stream.buffer();
+        }
+
+        public int getLength() {
+            return stream.size();
+        }
+
+        /**
+         * Give the output buffer back to the pool. May be called before the frame is done, e.g.
+         * when the result is no longer wanted; the buffer then goes back once it is.
+         */
+        public void release() {
+            JpegStream free;
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (!done) {
+                    return;
+                }
+                free = stream;
+            }
+            recycle(free);
+        }
+
+        private void finish(JpegStream stream, boolean success) {
+            boolean free;
+            synchronized (this) {
+                this.stream = stream;
+                this.success = success;
+                done = true;
+                free = released;
+                notifyAll();
+            }
+            if (free) {
+                recycle(stream);
+            }
+        }
+    }
+
+    private final Encoding poison = new Encoding(null, 0, 0);
+    private final int quality;
+    private final BlockingQueue<Encoding> frames = new LinkedBlockingQueue<>();
+    private final BlockingQueue<JpegStream> streams;
+    private final Object takeLock = new Object();
+    private final Thread[] workers;
+
+    /**
+     * @param threadCount number of encoder threads
+     * @param streamCount number of output buffers, at least threadCount + 1 so one frame can be
+     *                    consumed while every thread is busy
+     * @param quality     JPEG quality, 0 to 100
+     */
+    public JpegEncoderPool(int threadCount, int streamCount, int quality) {
+        this.quality = quality;
+        streams = new ArrayBlockingQueue<>(streamCount);
+        for (int i = 0; i < streamCount; ++i) {
+            streams.add(new JpegStream());
+        }
+        workers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; ++i) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    work(new Rect());
+                }
+            }, "JpegEncoder-" + i);
+            workers[i].start();
+        }
+    }
+
+    /** Queue a frame for compression, the buffer must not change until the encoding is done */
+    public Encoding encode(byte[] nv21, int width, int height) {
+        Encoding encoding = new Encoding(nv21, width, height);
+        frames.add(encoding);
+        return encoding;
+    }
+
+    /** Compress everything already queued, then stop the encoder threads */
+    public void shutdown() {
+        for (int i = 0; i < workers.length; ++i) {
+            frames.add(poison);
+        }
+    }
+
+    /** The rect is reused by this thread for every frame */
+    private void work(Rect rect) {
+        while (true) {
+            Encoding encoding;
+            JpegStream stream;
+            try {
+                // Frame and stream are taken together, so streams go to frames in submission order
+                synchronized (takeLock) {
+                    encoding = frames.take();
+                    if (encoding == poison) {
+                        return;
+                    }
+                    stream = streams.take();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            stream.reset();
+            rect.set(0, 0, encoding.width, encoding.height);
+            boolean success = false;
+            try {
+                YuvImage image = new YuvImage(encoding.nv21, ImageFormat.NV21, encoding.width,
+                        encoding.height, null);
+                success = image.compressToJpeg(rect, quality, stream);
+            } catch (IllegalArgumentException e) {
+                Log.d(TAG, "Error compressing frame: " + e.getMessage());
+            }
+            encoding.finish(stream, success);
+        }
+    }
+
+    private void recycle(JpegStream stream) {
+        streams.offer(stream);
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Records how the colour of the region of interest changes over a long assay.
+ * <p/>
+ * ROI statistics of every preview frame are folded into the current tick, which keeps only sums;
+ * when a tick ends its mean and frame to frame standard deviation are appended to a CSV file as one
+ * line, and the fitted rate of change of each channel is updated from running regression sums. No
+ * frames are kept and memory does not grow with the length of the run. Lines are written and
+ * flushed on a background thread, so a run cut short still leaves a valid file of complete ticks.
+ */
+public class KineticsRecorder {
+    private static final String TAG = "KINETICS";
+    private static final int CHANNELS = 3;
+    /** Ticks that may wait for the writer, a slower writer loses ticks rather than growing */
+    private static final int RING = 16;
+    // Record layout: elapsed seconds, frame count, then mean and standard deviation per channel
+    private static final int RECORD_SIZE = 2 + 2 * CHANNELS;
+    private static final int MSG_WRITE = 1;
+    private static final int MSG_CLOSE = 2;
+
+    /** Summary of the run so far */
+    public static class Curve {
+        public int tickCount;
+        public float elapsedS;
+        public final float[] first = new float[CHANNELS];
+        public final float[] latest = new float[CHANNELS];
+        /** Least squares rate of change of each channel over the run, per minute */
+        public final float[] slopePerMin = new float[CHANNELS];
+
+        public void set(Curve other) {
+            tickCount = other.tickCount;
+            elapsedS = other.elapsedS;
+            System.arraycopy(other.first, 0, first, 0, CHANNELS);
+            System.arraycopy(other.latest, 0, latest, 0, CHANNELS);
+            System.arraycopy(other.slopePerMin, 0, slopePerMin, 0, CHANNELS);
+        }
+    }
+
+    public interface Listener {
+        /** A tick ended, called on the preview processor thread */
+        void onTick(KineticsRecorder recorder, Curve curve);
+
+        /** The run stopped and the file is closed, called on the main thread */
+        void onFinished(KineticsRecorder recorder, File file, IOException error);
+    }
+
+    private final File file;
+    private final long intervalNs;
+    private final long durationNs;
+    private final Listener listener;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the processor thread
+    private long startNs = -1;
+    private long tickEndNs;
+    private int tickFrames;
+    private double tickTimeSum;
+    private final double[] tickSum = new double[CHANNELS];
+    private final double[] tickSquareSum = new double[CHANNELS];
+    private double fitT;
+    private double fitTT;
+    private final double[] fitV = new double[CHANNELS];
+    private final double[] fitTV = new double[CHANNELS];
+    private final Curve curve = new Curve();
+    private int ringHead = 0;
+
+    // Shared between the processor thread and the writer
+    private final float[][] ring = new float[RING][RECORD_SIZE];
+    private int pending = 0;
+    private boolean stopped = false;
+
+    // Only touched on the writer thread
+    private Writer out;
+    private IOException error;
+    private final StringBuilder line = new StringBuilder();
+
+    /**
+     * @param file       appended to, the header is only written if it is empty
+     * @param intervalMs length of a tick
+     * @param durationMs the run stops by itself after this long, 0 to run until {@link #stop}
+     */
+    public KineticsRecorder(File file, long intervalMs, long durationMs, Listener listener) {
+        this.file = file;
+        this.intervalNs = intervalMs * 1000000L;
+        this.durationNs = durationMs * 1000000L;
+        this.listener = listener;
+        thread = new HandlerThread("KineticsWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what == MSG_WRITE) {
+                    write(msg.arg1);
+                } else if (msg.what == MSG_CLOSE) {
+                    close();
+                }
+                return true;
+            }
+        });
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                open();
+            }
+        });
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** Fold in the statistics of one frame, on the preview processor thread */
+    public void add(RoiAnalyzer.RoiStats stats) {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+        }
+        long t = stats.timestampNs;
+        if (startNs < 0) {
+            startNs = t;
+            tickEndNs = t + intervalNs;
+        }
+        if (t >= tickEndNs) {
+            endTick();
+            // Skip whole ticks if frames stopped coming for a while
+            tickEndNs += intervalNs * ((t - tickEndNs) / intervalNs + 1);
+        }
+        ++tickFrames;
+        tickTimeSum += t - startNs;
+        for (int c = 0; c < CHANNELS; ++c) {
+            tickSum[c] += stats.mean[c];
+            tickSquareSum[c] += stats.mean[c] * stats.mean[c];
+        }
+        if (durationNs > 0 && t - startNs >= durationNs) {
+            stop();
+        }
+    }
+
+    /** End the run, the tick in progress is dropped. May be called from any thread, more than once */
+    public void stop() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+        }
+        handler.sendEmptyMessage(MSG_CLOSE);
+    }
+
+    private void endTick() {
+        if (tickFrames == 0) {
+            return;
+        }
+        int n = tickFrames;
+        double t = tickTimeSum / n / 1e9;
+        int slot;
+        synchronized (this) {
+            if (pending == RING) {
+                Log.d(TAG, "Writer behind, dropping a tick");
+                slot = -1;
+            } else {
+                slot = ringHead;
+                ringHead = (ringHead + 1) % RING;
+                ++pending;
+            }
+        }
+
+        int ticks = curve.tickCount + 1;
+        fitT += t;
+        fitTT += t * t;
+        float[] record = slot < 0 ? null : ring[slot];
+        for (int c = 0; c < CHANNELS; ++c) {
+            double mean = tickSum[c] / n;
+            double std = Math.sqrt(Math.max(0, tickSquareSum[c] / n - mean * mean));
+            fitV[c] += mean;
+            fitTV[c] += t * mean;
+            double denominator = ticks * fitTT - fitT * fitT;
+            curve.slopePerMin[c] = ticks < 2 || denominator <= 0 ? 0 :
+                    (float) (60 * (ticks * fitTV[c] - fitT * fitV[c]) / denominator);
+            if (ticks == 1) {
+                curve.first[c] = (float) mean;
+            }
+            curve.latest[c] = (float) mean;
+            if (record != null) {
+                record[2 + c] = (float) mean;
+                record[2 + CHANNELS + c] = (float) std;
+            }
+            tickSum[c] = 0;
+            tickSquareSum[c] = 0;
+        }
+        curve.tickCount = ticks;
+        curve.elapsedS = (float) t;
+        if (record != null) {
+            record[0] = (float) t;
+            record[1] = n;
+            handler.obtainMessage(MSG_WRITE, slot, 0).sendToTarget();
+        }
+        tickFrames = 0;
+        tickTimeSum = 0;
+        listener.onTick(this, curve);
+    }
+
+    private void open() {
+        try {
+            boolean empty = file.length() == 0;
+            out = new BufferedWriter(new FileWriter(file, true));
+            if (empty) {
+                out.write("# interval_ms=" + intervalNs / 1000000L + " time_ms=" + System.currentTimeMillis() + "\n");
+                out.write("time_s,frames,mean_r,mean_g,mean_b,sd_r,sd_g,sd_b\n");
+                out.flush();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Error opening " + file.getName() + ": " + e.getMessage());
+            error = e;
+        }
+    }
+
+    private void write(int slot) {
+        if (out != null && error == null) {
+            float[] record = ring[slot];
+            line.setLength(0);
+            line.append(record[0]).append(',').append((int) record[1]);
+            for (int i = 2; i < RECORD_SIZE; ++i) {
+                line.append(',').append(record[i]);
+            }
+            line.append('\n');
+            try {
+                out.append(line);
+                // One line every few seconds, flush so an interrupted run keeps its ticks
+                out.flush();
+            } catch (IOException e) {
+                Log.d(TAG, "Error writing " + file.getName() + ": " + e.getMessage());
+                error = e;
+            }
+        }
+        synchronized (this) {
+            --pending;
+        }
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            out = null;
+        }
+        final IOException result = error;
+        thread.quit();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFinished(KineticsRecorder.this, file, result);
+            }
+        });
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of durations in microseconds.
+ * <p/>
+ * Buckets are exact below {@link #SUB_BUCKETS} us and then split each power of two into
+ * {@link #SUB_BUCKETS} steps, so any value is off by at most 1/16 of itself. Every bucket is
+ * allocated up front and {@link #record} is a single atomic increment, which makes it cheap to
+ * call from camera callbacks on any thread.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    public static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /** Values above 2^MAX_EXPONENT us, about 19 hours, go to the last bucket */
+    private static final int MAX_EXPONENT = 36;
+    public static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    public void record(long micros) {
+        counts.incrementAndGet(bucketOf(micros));
+    }
+
+    /** Record the time since {@code startNs}, taken from {@link System#nanoTime()} */
+    public void recordSince(long startNs) {
+        record((System.nanoTime() - startNs) / 1000);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts.set(i, 0);
+        }
+    }
+
+    /** Copy the bucket counts, so that statistics of the copy are consistent with each other */
+    public void snapshot(long[] out) {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            out[i] = counts.get(i);
+        }
+    }
+
+    public static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return micros < 0 ? 0 : (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int mantissa = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    /** Smallest value that falls in a bucket */
+    public static long bucketStart(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long mantissa = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + mantissa) << (exponent - SUB_BITS);
+    }
+
+    public static long count(long[] snapshot) {
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Value below which a fraction {@code p} of the snapshot's samples fall, reported as the middle
+     * of its bucket. Returns 0 for an empty snapshot.
+     */
+    public static long percentile(long[] snapshot, double p) {
+        long total = count(snapshot);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                long start = bucketStart(i);
+                long end = i + 1 < BUCKET_COUNT ? bucketStart(i + 1) : start + 1;
+                return (start + end - 1) / 2;
+            }
+        }
+        return bucketStart(BUCKET_COUNT - 1);
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Measures how much the scene moves between preview frames.
+ * <p/>
+ * Each frame's luma is averaged down to at most {@link #MAX_CELLS} cells and compared with the
+ * previous frame's cells, which are overwritten as they are compared, so a single plane allocated
+ * in {@link #onPreviewSizeChanged} is all the memory needed. The motion of a frame is the mean
+ * absolute difference of its cells in luma levels, 0 to 255.
+ * <p/>
+ * The scene counts as stable once the motion has stayed below the threshold for a number of frames
+ * in a row. {@link #whenStable} holds off an action until then; the motion of recent frames is kept
+ * so it can be looked up for the time a picture was taken.
+ */
+public class MotionDetector implements FrameAnalyzer {
+    /** Reduced luma planes are at most this many cells, bigger previews are averaged further */
+    private static final int MAX_CELLS = 160 * 120;
+    /** Number of recent frames whose motion can be looked up */
+    private static final int HISTORY = 32;
+
+    /** Called on the main thread */
+    public interface StableCallback {
+        void onStable();
+
+        /** The scene did not settle in time */
+        void onTimeout();
+    }
+
+    private final float threshold;
+    private final int settleFrames;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on the processor thread
+    private int step;
+    private int gridWidth;
+    private int gridHeight;
+    private int[] luma;
+    private boolean primed = false;
+
+    // Guarded by this
+    private int stableFrames = 0;
+    private final long[] historyNs = new long[HISTORY];
+    private final float[] historyMotion = new float[HISTORY];
+    private int historyHead = 0;
+    private int historyCount = 0;
+    private StableCallback pending;
+
+    private final Runnable timeout = new Runnable() {
+        @Override
+        public void run() {
+            StableCallback callback;
+            synchronized (MotionDetector.this) {
+                callback = pending;
+                pending = null;
+            }
+            if (callback != null) {
+                callback.onTimeout();
+            }
+        }
+    };
+
+    /**
+     * @param threshold    motion below which a frame counts as still
+     * @param settleFrames still frames in a row needed for the scene to count as stable
+     */
+    public MotionDetector(float threshold, int settleFrames) {
+        this.threshold = threshold;
+        this.settleFrames = Math.max(1, settleFrames);
+    }
+
+    public float getThreshold() {
+        return threshold;
+    }
+
+    public synchronized boolean isStable() {
+        return stableFrames >= settleFrames;
+    }
+
+    /** Motion of the most recent frame, NaN before the second frame */
+    public synchronized float getMotion() {
+        return historyCount == 0 ? Float.NaN : historyMotion[(historyHead - 1 + HISTORY) % HISTORY];
+    }
+
+    /** Motion of the frame nearest to a {@link System#nanoTime()} time, NaN if none was measured */
+    public synchronized float motionAt(long timeNs) {
+        float nearest = Float.NaN;
+        long nearestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < historyCount; ++i) {
+            int slot = (historyHead - 1 - i + HISTORY) % HISTORY;
+            long distance = Math.abs(historyNs[slot] - timeNs);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = historyMotion[slot];
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Call back once the scene is stable, at once if it already is, or after {@code timeoutMs} if
+     * it does not settle. Must be called on the main thread; replaces a callback still waiting.
+     */
+    public void whenStable(long timeoutMs, StableCallback callback) {
+        synchronized (this) {
+            mainHandler.removeCallbacks(timeout);
+            if (stableFrames < settleFrames) {
+                pending = callback;
+                mainHandler.postDelayed(timeout, timeoutMs);
+                return;
+            }
+            pending = null;
+        }
+        fire(callback);
+    }
+
+    /** Forget a callback still waiting for the scene to settle, one already posted still runs */
+    public synchronized void cancelWait() {
+        mainHandler.removeCallbacks(timeout);
+        pending = null;
+    }
+
+    @Override
+    public void onPreviewSizeChanged(int width, int height) {
+        step = 1;
+        while ((width / step) * (height / step) > MAX_CELLS) {
+            step *= 2;
+        }
+        gridWidth = width / step;
+        gridHeight = height / step;
+        luma = new int[gridWidth * gridHeight];
+        primed = false;
+        synchronized (this) {
+            stableFrames = 0;
+        }
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        if (luma == null || frame.width / step != gridWidth || frame.height / step != gridHeight) {
+            return;
+        }
+        long difference = reduceAndCompare(frame.data, frame.width);
+        if (!primed) {
+            // Nothing to compare the first frame with
+            primed = true;
+            return;
+        }
+        float motion = (float) difference / luma.length;
+
+        StableCallback stable = null;
+        synchronized (this) {
+            historyNs[historyHead] = frame.getTimestampNs();
+            historyMotion[historyHead] = motion;
+            historyHead = (historyHead + 1) % HISTORY;
+            historyCount = Math.min(historyCount + 1, HISTORY);
+            if (motion < threshold) {
+                ++stableFrames;
+            } else {
+                stableFrames = 0;
+            }
+            if (stableFrames >= settleFrames && pending != null) {
+                stable = pending;
+                pending = null;
+                mainHandler.removeCallbacks(timeout);
+            }
+        }
+        if (stable != null) {
+            fire(stable);
+        }
+    }
+
+    /** Average the Y plane into the cells, returns the sum of absolute changes from the old cells */
+    private long reduceAndCompare(byte[] data, int width) {
+        int shift = Integer.numberOfTrailingZeros(step * step);
+        long difference = 0;
+        for (int gy = 0; gy < gridHeight; ++gy) {
+            int row = gy * gridWidth;
+            for (int gx = 0; gx < gridWidth; ++gx) {
+                int sum = 0;
+                int offset = gy * step * width + gx * step;
+                for (int dy = 0; dy < step; ++dy, offset += width) {
+                    for (int dx = 0; dx < step; ++dx) {
+                        sum += data[offset + dx] & 0xFF;
+                    }
+                }
+                int value = sum >> shift;
+                difference += Math.abs(value - luma[row + gx]);
+                luma[row + gx] = value;
+            }
+        }
+        return difference;
+    }
+
+    private void fire(final StableCallback callback) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onStable();
+            }
+        });
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.os.Process;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Splits per-row image work into horizontal stripes, one per core.
+ * <p/>
+ * The worker threads are started once and parked between calls, and {@link #run} itself does not
+ * allocate, so it is cheap enough to call on every preview frame. The calling thread works on the
+ * first stripe and returns once every stripe is done. Calls from different threads are serialised,
+ * so work on preview frames uses {@link #getPreviewInstance()} and never waits behind the offline
+ * merges of whole pictures on {@link #getInstance()}.
+ */
+public class ParallelStripes {
+    /** Work on rows [startRow, endRow) of stripe {@code stripe} */
+    public interface StripeTask {
+        void run(int stripe, int startRow, int endRow);
+    }
+
+    private static ParallelStripes instance;
+    private static ParallelStripes previewInstance;
+
+    private final int stripeCount;
+    private final Semaphore[] start;
+    private final Semaphore done = new Semaphore(0);
+
+    // Set by run() before the workers are released
+    private StripeTask task;
+    private int rows;
+    private volatile Throwable failure;
+
+    /** Shared instance with one stripe per available core */
+    public static synchronized ParallelStripes getInstance() {
+        if (instance == null) {
+            instance = new ParallelStripes(Runtime.getRuntime().availableProcessors());
+        }
+        return instance;
+    }
+
+    /** Shared instance for analyzers running on the preview processor thread, one stripe per core */
+    public static synchronized ParallelStripes getPreviewInstance() {
+        if (previewInstance == null) {
+            previewInstance = new ParallelStripes(Runtime.getRuntime().availableProcessors());
+        }
+        return previewInstance;
+    }
+
+    public ParallelStripes(int stripeCount) {
+        this.stripeCount = Math.max(1, stripeCount);
+        start = new Semaphore[this.stripeCount];
+        for (int i = 1; i < this.stripeCount; ++i) {
+            final int stripe = i;
+            start[i] = new Semaphore(0);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                    work(stripe);
+                }
+            }, "ParallelStripes-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    /** Run {@code task} over {@code rows} rows and wait for all stripes to finish */
+    public synchronized void run(int rows, StripeTask task) {
+        this.rows = rows;
+        this.task = task;
+        failure = null;
+        for (int i = 1; i < stripeCount; ++i) {
+            start[i].release();
+        }
+        try {
+            runStripe(0);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        done.acquireUninterruptibly(stripeCount - 1);
+        this.task = null;
+
+        Throwable thrown = failure;
+        if (thrown instanceof RuntimeException) {
+            throw (RuntimeException) thrown;
+        } else if (thrown instanceof Error) {
+            throw (Error) thrown;
+        }
+    }
+
+    /** First row of a stripe, stripe {@link #getStripeCount()} gives the row count */
+    public static int stripeStart(int stripe, int stripeCount, int rows) {
+        return (int) ((long) rows * stripe / stripeCount);
+    }
+
+    private void runStripe(int stripe) {
+        int startRow = stripeStart(stripe, stripeCount, rows);
+        int endRow = stripeStart(stripe + 1, stripeCount, rows);
+        if (startRow < endRow) {
+            task.run(stripe, startRow, endRow);
+        }
+    }
+
+    private void work(int stripe) {
+        while (true) {
+            start[stripe].acquireUninterruptibly();
+            try {
+                runStripe(stripe);
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            } finally {
+                done.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pooled NV21 preview buffer. The buffer goes back to the camera when the last holder calls
+ * {@link #release()}.
+ */
+public class PreviewFrame {
+    /** NV21 data, the Y plane is width * height bytes followed by interleaved V/U at half size */
+    public final byte[] data;
+    public final int width;
+    public final int height;
+
+    private final PreviewProcessor owner;
+    private final int generation;
+    private final AtomicInteger refCount = new AtomicInteger();
+    private volatile long timestampNs;
+
+    PreviewFrame(PreviewProcessor owner, int generation, byte[] data, int width, int height) {
+        this.owner = owner;
+        this.generation = generation;
+        this.data = data;
+        this.width = width;
+        this.height = height;
+    }
+
+    /** {@link System#nanoTime()} when the camera delivered the frame */
+    public long getTimestampNs() {
+        return timestampNs;
+    }
+
+    /** Keep the frame beyond {@link FrameAnalyzer#onFrame}, must be paired with {@link #release()} */
+    public void retain() {
+        refCount.incrementAndGet();
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            owner.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("Preview frame released too many times");
+        }
+    }
+
+    boolean isFree() {
+        return refCount.get() == 0;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    void acquire(long timestampNs) {
+        this.timestampNs = timestampNs;
+        refCount.set(1);
+    }
+}
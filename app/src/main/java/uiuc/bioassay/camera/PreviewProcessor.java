@@ -0,0 +1,232 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Feeds live preview frames to registered {@link FrameAnalyzer}s on a dedicated thread.
+ * <p/>
+ * Uses {@link Camera#setPreviewCallbackWithBuffer} with a fixed pool of NV21 buffers sized from
+ * the preview size, so nothing is allocated per frame. A buffer is handed back to the camera once
+ * every analyser is done with it. When analysis falls behind the camera simply runs out of buffers
+ * and drops preview frames instead of queueing them.
+ */
+@SuppressWarnings("deprecation")
+public class PreviewProcessor implements Camera.PreviewCallback {
+    private static final String TAG = "PREVIEW PROCESSOR";
+    private static final int MSG_FRAME = 1;
+    private static final int MSG_SIZE = 2;
+
+    private final int bufferCount;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    private volatile FrameAnalyzer[] analyzers = new FrameAnalyzer[0];
+    private final LatencyHistogram analysisLatency = CaptureMetrics.getInstance().get(CaptureMetrics.ANALYSIS);
+
+    // Guarded by this
+    private Camera camera;
+    private PreviewFrame[] frames;
+    private volatile int generation = 0;
+
+    public PreviewProcessor(int bufferCount) {
+        this.bufferCount = bufferCount;
+        thread = new HandlerThread("PreviewProcessor", Process.THREAD_PRIORITY_DISPLAY);
+        thread.start();
+        handler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_FRAME:
+                        dispatch((PreviewFrame) msg.obj);
+                        return true;
+                    case MSG_SIZE:
+                        FrameAnalyzer[] current = analyzers;
+                        for (int i = 0; i < current.length; ++i) {
+                            current[i].onPreviewSizeChanged(msg.arg1, msg.arg2);
+                        }
+                        return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    public synchronized void addAnalyzer(final FrameAnalyzer analyzer) {
+        FrameAnalyzer[] grown = new FrameAnalyzer[analyzers.length + 1];
+        System.arraycopy(analyzers, 0, grown, 0, analyzers.length);
+        grown[analyzers.length] = analyzer;
+        analyzers = grown;
+
+        if (frames != null) {
+            final int width = frames[0].width;
+            final int height = frames[0].height;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    analyzer.onPreviewSizeChanged(width, height);
+                }
+            });
+        }
+    }
+
+    public synchronized void removeAnalyzer(FrameAnalyzer analyzer) {
+        for (int i = 0; i < analyzers.length; ++i) {
+            if (analyzers[i] == analyzer) {
+                FrameAnalyzer[] shrunk = new FrameAnalyzer[analyzers.length - 1];
+                System.arraycopy(analyzers, 0, shrunk, 0, i);
+                System.arraycopy(analyzers, i + 1, shrunk, i, analyzers.length - i - 1);
+                analyzers = shrunk;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start receiving frames from the camera. Call before {@link Camera#startPreview()}; calling it
+     * again for the same camera and preview size does nothing.
+     *
+     * @param size the camera's current preview size
+     */
+    public synchronized void attach(Camera camera, Camera.Size size) {
+        if (this.camera == camera && frames != null &&
+                frames[0].width == size.width && frames[0].height == size.height) {
+            return;
+        }
+
+        if (frames == null || frames[0].width != size.width || frames[0].height != size.height) {
+            // Buffers still held by analysers belong to the old generation and are dropped on release
+            ++generation;
+            int bufferSize = size.width * size.height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+            frames = new PreviewFrame[bufferCount];
+            for (int i = 0; i < bufferCount; ++i) {
+                frames[i] = new PreviewFrame(this, generation, new byte[bufferSize],
+                        size.width, size.height);
+            }
+            handler.obtainMessage(MSG_SIZE, size.width, size.height, null).sendToTarget();
+        }
+
+        this.camera = camera;
+        camera.setPreviewCallbackWithBuffer(this);
+        for (PreviewFrame frame : frames) {
+            // Frames still held by analysers are queued when they are released
+            if (frame.isFree()) {
+                camera.addCallbackBuffer(frame.data);
+            }
+        }
+    }
+
+    /** Stop receiving frames, call before the camera is released. */
+    public synchronized void detach() {
+        if (camera != null) {
+            camera.setPreviewCallbackWithBuffer(null);
+            camera = null;
+        }
+    }
+
+    /** Stop the processor thread, frames already queued are dropped */
+    public void quit() {
+        detach();
+        thread.quit();
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) {
+            return;
+        }
+        PreviewFrame frame = findFrame(data);
+        if (frame == null) {
+            return;
+        }
+        frame.acquire(System.nanoTime());
+        handler.obtainMessage(MSG_FRAME, frame).sendToTarget();
+    }
+
+    private synchronized PreviewFrame findFrame(byte[] data) {
+        if (frames == null) {
+            return null;
+        }
+        for (PreviewFrame frame : frames) {
+            if (frame.data == data) {
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private void dispatch(PreviewFrame frame) {
+        if (frame.getGeneration() != generation) {
+            // Delivered just before the preview size changed, analysers are set up for the new size
+            frame.release();
+            return;
+        }
+        FrameAnalyzer[] current = analyzers;
+        long startNs = System.nanoTime();
+        for (int i = 0; i < current.length; ++i) {
+            try {
+                current[i].onFrame(frame);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Analyser failed on frame", e);
+            }
+        }
+        if (current.length > 0) {
+            analysisLatency.recordSince(startNs);
+        }
+        frame.release();
+    }
+
+    /** Called once the last holder released the frame */
+    synchronized void recycle(PreviewFrame frame) {
+        if (camera != null && frame.getGeneration() == generation) {
+            camera.addCallbackBuffer(frame.data);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses a preview size from the sizes a camera supports.
+ * <p/>
+ * Strategies only see plain {@link Size} lists, so they can be checked against size lists recorded
+ * from real devices without a camera. Every strategy prefers sizes with the aspect ratio of the
+ * picture, so the preview shows what will be captured, and falls back to the closest ratio.
+ */
+public final class PreviewSizePolicy {
+    /** Sizes whose aspect ratios differ by less than this fraction are treated as equal */
+    private static final double ASPECT_TOLERANCE = 0.01;
+
+    private PreviewSizePolicy() {
+    }
+
+    public static final class Size {
+        public final int width;
+        public final int height;
+
+        public Size(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        public long area() {
+            return (long) width * height;
+        }
+
+        /** Long side over short side, so rotated sizes compare equal */
+        public double aspect() {
+            return (double) Math.max(width, height) / Math.min(width, height);
+        }
+
+        /** Whether this size has at least as many pixels as {@code other} along both sides */
+        public boolean covers(Size other) {
+            return Math.max(width, height) >= Math.max(other.width, other.height) &&
+                    Math.min(width, height) >= Math.min(other.width, other.height);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Size && ((Size) o).width == width && ((Size) o).height == height;
+        }
+
+        @Override
+        public int hashCode() {
+            return width * 31 + height;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height;
+        }
+    }
+
+    public interface Strategy {
+        /** @param supported non empty list of preview sizes */
+        Size choose(List<Size> supported, Size picture);
+    }
+
+    /** Smallest size that fills the view, or the largest there is if none does */
+    public static class Display implements Strategy {
+        private final Size view;
+
+        /** @param viewWidth view size in pixels, orientation does not matter */
+        public Display(int viewWidth, int viewHeight) {
+            view = new Size(viewWidth, viewHeight);
+        }
+
+        @Override
+        public Size choose(List<Size> supported, Size picture) {
+            Size best = null;
+            Size largest = null;
+            for (Size size : matchingAspect(supported, picture)) {
+                if (size.covers(view) && (best == null || size.area() < best.area())) {
+                    best = size;
+                }
+                if (largest == null || size.area() > largest.area()) {
+                    largest = size;
+                }
+            }
+            return best != null ? best : largest;
+        }
+    }
+
+    /** Largest size within a pixel budget, or the smallest there is if none fits */
+    public static class Analysis implements Strategy {
+        private final long maxPixels;
+
+        public Analysis(long maxPixels) {
+            this.maxPixels = maxPixels;
+        }
+
+        @Override
+        public Size choose(List<Size> supported, Size picture) {
+            Size best = null;
+            Size smallest = null;
+            for (Size size : matchingAspect(supported, picture)) {
+                if (size.area() <= maxPixels && (best == null || size.area() > best.area())) {
+                    best = size;
+                }
+                if (smallest == null || size.area() < smallest.area()) {
+                    smallest = size;
+                }
+            }
+            return best != null ? best : smallest;
+        }
+    }
+
+    /**
+     * The larger choice of two strategies. Camera1 has a single preview stream, so when it is both
+     * shown and analysed it has to satisfy whichever needs more pixels.
+     */
+    public static class Larger implements Strategy {
+        private final Strategy first;
+        private final Strategy second;
+
+        public Larger(Strategy first, Strategy second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public Size choose(List<Size> supported, Size picture) {
+            Size a = first.choose(supported, picture);
+            Size b = second.choose(supported, picture);
+            return b.area() > a.area() ? b : a;
+        }
+    }
+
+    /** Sizes with the picture's aspect ratio, or with the closest ratio there is */
+    static List<Size> matchingAspect(List<Size> supported, Size picture) {
+        double target = picture.aspect();
+        double closest = Double.MAX_VALUE;
+        for (Size size : supported) {
+            closest = Math.min(closest, Math.abs(size.aspect() - target));
+        }
+        List<Size> matching = new ArrayList<>();
+        for (Size size : supported) {
+            if (Math.abs(size.aspect() - target) <= Math.max(closest, ASPECT_TOLERANCE * target)) {
+                matching.add(size);
+            }
+        }
+        return matching;
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.ImageFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * An unencoded frame record inside a {@link SessionContainer}: a small header followed by the
+ * pixel data exactly as the camera delivered it, so no precision is lost to JPEG compression.
+ * There is no standalone raw file, records only exist as entries of a container and are read in
+ * place from its memory map.
+ * <p/>
+ * The header is {@link #HEADER_SIZE} bytes, little endian: magic, header size, format (an
+ * {@link ImageFormat} constant), width, height, data length as ints, then the capture time in
+ * nanoseconds as a long.
+ */
+public class RawFrameRecord {
+    public static final int MAGIC = 0x31574152; // "RAW1"
+    public static final int HEADER_SIZE = 32;
+
+    public final int format;
+    public final int width;
+    public final int height;
+    public final long timestampNs;
+    /** Read only view of the pixel data, backed by the file */
+    public final ByteBuffer data;
+
+    private RawFrameRecord(int format, int width, int height, long timestampNs, ByteBuffer data) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.timestampNs = timestampNs;
+        this.data = data;
+    }
+
+    /** Parse a frame starting at the buffer's position, e.g. inside a larger mapped file */
+    static RawFrameRecord readFrom(ByteBuffer buffer, String name) throws IOException {
+        int start = buffer.position();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt(start) != MAGIC) {
+            throw new IOException("Not a raw frame: " + name);
+        }
+        int headerSize = buffer.getInt(start + 4);
+        int format = buffer.getInt(start + 8);
+        int width = buffer.getInt(start + 12);
+        int height = buffer.getInt(start + 16);
+        int length = buffer.getInt(start + 20);
+        long timestampNs = buffer.getLong(start + 24);
+        if (headerSize < HEADER_SIZE || buffer.remaining() < headerSize + length) {
+            throw new IOException("Truncated raw frame: " + name);
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.position(start + headerSize);
+        data.limit(start + headerSize + length);
+        return new RawFrameRecord(format, width, height, timestampNs, data.slice().asReadOnlyBuffer());
+    }
+
+    static void putHeader(ByteBuffer buffer, int format, int width, int height, int length,
+                          long timestampNs) {
+        buffer.putInt(MAGIC).putInt(HEADER_SIZE).putInt(format).putInt(width).putInt(height)
+                .putInt(length).putLong(timestampNs);
+    }
+
+    /** Copy the pixel data out, e.g. for {@link android.graphics.YuvImage} */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+}
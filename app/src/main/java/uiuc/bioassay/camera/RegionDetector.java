@@ -0,0 +1,507 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+/**
+ * Finds the test zones of a strip or the wells of a plate in the preview.
+ * <p/>
+ * Each frame's luma is averaged down to at most {@link #MAX_CELLS} cells and thresholded with
+ * Otsu's method, so no level has to be tuned for the lighting. Connected components of the
+ * foreground are labelled in two passes with a union find over the label buffer; components that
+ * are too small, too large, touch the border or fill too little of their bounding box are dropped.
+ * The rest are grouped into rows and columns by their centres to tell a single row or column
+ * (a strip) from a grid (a plate), and reported in reading order. All buffers are allocated in
+ * {@link #onPreviewSizeChanged}, so a frame takes a few passes over 19200 cells and no allocation.
+ * <p/>
+ * Detections jitter from frame to frame, so {@link Listener#onRegions} is only called once the
+ * regions have kept their number and the largest has stayed put for a number of frames, and only
+ * if they differ from the ones reported before.
+ */
+public class RegionDetector implements FrameAnalyzer {
+    /** Reduced luma planes are at most this many cells, bigger previews are averaged further */
+    private static final int MAX_CELLS = 160 * 120;
+    /** Enough for a 96 well plate */
+    public static final int MAX_REGIONS = 96;
+    /** Components smaller or larger than these fractions of the frame are not regions */
+    private static final float MIN_AREA_FRACTION = 0.001f;
+    private static final float MAX_AREA_FRACTION = 0.25f;
+    /** Components filling less of their bounding box than this are not regions */
+    private static final float MIN_FILL = 0.5f;
+    /** The largest region counts as in the same place if its centre moved less than this */
+    private static final float MAX_SHIFT = 0.02f;
+
+    public static final int LAYOUT_NONE = 0;
+    public static final int LAYOUT_SINGLE = 1;
+    /** One row or one column of regions */
+    public static final int LAYOUT_STRIP = 2;
+    /** Rows and columns of regions, a few may be missing */
+    public static final int LAYOUT_PLATE = 3;
+    public static final int LAYOUT_SCATTERED = 4;
+
+    /** Regions found in a frame, as fractions of the frame, in reading order */
+    public static class Detection {
+        public int count;
+        public int layout = LAYOUT_NONE;
+        public int rows;
+        public int columns;
+        /** Index of the region with the largest area, -1 if there are none */
+        public int largest = -1;
+        public final float[] left = new float[MAX_REGIONS];
+        public final float[] top = new float[MAX_REGIONS];
+        public final float[] right = new float[MAX_REGIONS];
+        public final float[] bottom = new float[MAX_REGIONS];
+        public final int[] area = new int[MAX_REGIONS];
+        public long timestampNs;
+
+        public void set(Detection other) {
+            count = other.count;
+            layout = other.layout;
+            rows = other.rows;
+            columns = other.columns;
+            largest = other.largest;
+            System.arraycopy(other.left, 0, left, 0, count);
+            System.arraycopy(other.top, 0, top, 0, count);
+            System.arraycopy(other.right, 0, right, 0, count);
+            System.arraycopy(other.bottom, 0, bottom, 0, count);
+            System.arraycopy(other.area, 0, area, 0, count);
+            timestampNs = other.timestampNs;
+        }
+
+        public float centerX(int i) {
+            return (left[i] + right[i]) / 2;
+        }
+
+        public float centerY(int i) {
+            return (top[i] + bottom[i]) / 2;
+        }
+    }
+
+    /** Called on the preview processor thread */
+    public interface Listener {
+        void onRegions(RegionDetector detector, Detection detection);
+    }
+
+    private final Listener listener;
+    private final boolean darkRegions;
+    private final int stableFrames;
+
+    // Only touched on the processor thread
+    private int step;
+    private int gridWidth;
+    private int gridHeight;
+    private int[] luma;
+    private int[] labels;
+    private int[] parent;
+    private int[] labelArea;
+    private int[] labelMinX;
+    private int[] labelMinY;
+    private int[] labelMaxX;
+    private int[] labelMaxY;
+    private final int[] histogram = new int[256];
+    private final int[] order = new int[MAX_REGIONS];
+    private final int[] rowOf = new int[MAX_REGIONS];
+    private final Detection current = new Detection();
+    private final Detection reported = new Detection();
+    private int stableCount = 0;
+    private int lastCount;
+    private float lastX;
+    private float lastY;
+
+    /**
+     * @param darkRegions  whether regions are darker than their background, e.g. coloured test
+     *                     zones on a white strip, rather than brighter
+     * @param stableFrames frames the detection has to hold before it is reported
+     */
+    public RegionDetector(boolean darkRegions, int stableFrames, Listener listener) {
+        this.darkRegions = darkRegions;
+        this.stableFrames = Math.max(1, stableFrames);
+        this.listener = listener;
+    }
+
+    @Override
+    public void onPreviewSizeChanged(int width, int height) {
+        step = 1;
+        while ((width / step) * (height / step) > MAX_CELLS) {
+            step *= 2;
+        }
+        gridWidth = width / step;
+        gridHeight = height / step;
+        int cells = gridWidth * gridHeight;
+        luma = new int[cells];
+        labels = new int[cells];
+        // A new label needs background to its left, so a row starts at most half its cells
+        int maxLabels = cells / 2 + gridHeight + 1;
+        parent = new int[maxLabels];
+        labelArea = new int[maxLabels];
+        labelMinX = new int[maxLabels];
+        labelMinY = new int[maxLabels];
+        labelMaxX = new int[maxLabels];
+        labelMaxY = new int[maxLabels];
+        stableCount = 0;
+        reported.count = 0;
+        reported.largest = -1;
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        if (luma == null || frame.width / step != gridWidth || frame.height / step != gridHeight) {
+            return;
+        }
+        reduce(frame.data, frame.width);
+        int threshold = otsuThreshold(gridWidth * gridHeight);
+        int labelCount = label(threshold);
+        collectRegions(labelCount);
+        findLayout();
+        current.timestampNs = frame.getTimestampNs();
+
+        // Report once the detection holds still and differs from the last report
+        boolean same = current.largest >= 0 && stableCount > 0 && current.count == lastCount &&
+                Math.abs(current.centerX(current.largest) - lastX) < MAX_SHIFT &&
+                Math.abs(current.centerY(current.largest) - lastY) < MAX_SHIFT;
+        stableCount = same ? stableCount + 1 : (current.largest >= 0 ? 1 : 0);
+        lastCount = current.count;
+        if (current.largest >= 0) {
+            lastX = current.centerX(current.largest);
+            lastY = current.centerY(current.largest);
+        }
+        if (stableCount == stableFrames && differsFromReported()) {
+            reported.set(current);
+            listener.onRegions(this, reported);
+        }
+    }
+
+    private boolean differsFromReported() {
+        return reported.count != current.count || reported.largest < 0 ||
+                Math.abs(reported.centerX(reported.largest) - lastX) >= MAX_SHIFT ||
+                Math.abs(reported.centerY(reported.largest) - lastY) >= MAX_SHIFT;
+    }
+
+    /** Average step x step blocks of the Y plane into the cells and histogram them */
+    private void reduce(byte[] data, int width) {
+        int shift = Integer.numberOfTrailingZeros(step * step);
+        for (int i = 0; i < 256; ++i) {
+            histogram[i] = 0;
+        }
+        for (int gy = 0; gy < gridHeight; ++gy) {
+            int row = gy * gridWidth;
+            for (int gx = 0; gx < gridWidth; ++gx) {
+                int sum = 0;
+                int offset = gy * step * width + gx * step;
+                for (int dy = 0; dy < step; ++dy, offset += width) {
+                    for (int dx = 0; dx < step; ++dx) {
+                        sum += data[offset + dx] & 0xFF;
+                    }
+                }
+                int value = sum >> shift;
+                luma[row + gx] = value;
+                ++histogram[value];
+            }
+        }
+    }
+
+    /** Level that best separates the histogram into two classes, the foreground is one side of it */
+    private int otsuThreshold(int total) {
+        long weightedTotal = 0;
+        for (int v = 0; v < 256; ++v) {
+            weightedTotal += (long) v * histogram[v];
+        }
+        long below = 0;
+        long weightedBelow = 0;
+        double best = -1;
+        int threshold = 0;
+        for (int v = 0; v < 256; ++v) {
+            below += histogram[v];
+            if (below == 0) {
+                continue;
+            }
+            long above = total - below;
+            if (above == 0) {
+                break;
+            }
+            weightedBelow += (long) v * histogram[v];
+            double meanBelow = (double) weightedBelow / below;
+            double meanAbove = (double) (weightedTotal - weightedBelow) / above;
+            double between = (double) below * above * (meanBelow - meanAbove) * (meanBelow - meanAbove);
+            if (between > best) {
+                best = between;
+                threshold = v;
+            }
+        }
+        return threshold;
+    }
+
+    /**
+     * Label the 4-connected foreground components, levels at or below the threshold for dark
+     * regions and above it otherwise. Returns one more than the highest label; afterwards every
+     * label's root is {@code parent[label]} and holds the component's area and bounding box.
+     */
+    private int label(int threshold) {
+        int next = 1;
+        for (int gy = 0; gy < gridHeight; ++gy) {
+            int row = gy * gridWidth;
+            for (int gx = 0; gx < gridWidth; ++gx) {
+                int i = row + gx;
+                if ((luma[i] <= threshold) != darkRegions) {
+                    labels[i] = 0;
+                    continue;
+                }
+                int leftLabel = gx > 0 ? labels[i - 1] : 0;
+                int upLabel = gy > 0 ? labels[i - gridWidth] : 0;
+                if (leftLabel == 0 && upLabel == 0) {
+                    if (next == parent.length) {
+                        // Cannot happen with the buffers sized as they are, but never overrun them
+                        labels[i] = 0;
+                        continue;
+                    }
+                    parent[next] = next;
+                    labels[i] = next++;
+                } else if (leftLabel == 0 || upLabel == 0) {
+                    labels[i] = leftLabel + upLabel;
+                } else {
+                    labels[i] = union(leftLabel, upLabel);
+                }
+            }
+        }
+
+        // Roots are always the smallest label of their set, so one pass in order flattens them
+        for (int l = 1; l < next; ++l) {
+            parent[l] = parent[parent[l]];
+            labelArea[l] = 0;
+            labelMinX[l] = Integer.MAX_VALUE;
+            labelMinY[l] = Integer.MAX_VALUE;
+            labelMaxX[l] = -1;
+            labelMaxY[l] = -1;
+        }
+        for (int gy = 0; gy < gridHeight; ++gy) {
+            int row = gy * gridWidth;
+            for (int gx = 0; gx < gridWidth; ++gx) {
+                int l = labels[row + gx];
+                if (l == 0) {
+                    continue;
+                }
+                int root = parent[l];
+                ++labelArea[root];
+                labelMinX[root] = Math.min(labelMinX[root], gx);
+                labelMinY[root] = Math.min(labelMinY[root], gy);
+                labelMaxX[root] = Math.max(labelMaxX[root], gx);
+                labelMaxY[root] = Math.max(labelMaxY[root], gy);
+            }
+        }
+        return next;
+    }
+
+    private int find(int l) {
+        while (parent[l] != l) {
+            parent[l] = parent[parent[l]];
+            l = parent[l];
+        }
+        return l;
+    }
+
+    /** Merge two sets, the smaller root becomes the root of both */
+    private int union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+            return rootA;
+        }
+        parent[rootA] = rootB;
+        return rootB;
+    }
+
+    /** Keep the components shaped like assay regions */
+    private void collectRegions(int labelCount) {
+        int cells = gridWidth * gridHeight;
+        int minArea = Math.max(4, (int) (cells * MIN_AREA_FRACTION));
+        int maxArea = (int) (cells * MAX_AREA_FRACTION);
+        int count = 0;
+        int largest = -1;
+        for (int l = 1; l < labelCount && count < MAX_REGIONS; ++l) {
+            if (parent[l] != l) {
+                continue;
+            }
+            int area = labelArea[l];
+            int minX = labelMinX[l], minY = labelMinY[l], maxX = labelMaxX[l], maxY = labelMaxY[l];
+            int boxArea = (maxX - minX + 1) * (maxY - minY + 1);
+            if (area < minArea || area > maxArea || area < MIN_FILL * boxArea ||
+                    minX == 0 || minY == 0 || maxX == gridWidth - 1 || maxY == gridHeight - 1) {
+                continue;
+            }
+            current.left[count] = (float) minX / gridWidth;
+            current.top[count] = (float) minY / gridHeight;
+            current.right[count] = (float) (maxX + 1) / gridWidth;
+            current.bottom[count] = (float) (maxY + 1) / gridHeight;
+            current.area[count] = area;
+            if (largest < 0 || area > current.area[largest]) {
+                largest = count;
+            }
+            ++count;
+        }
+        current.count = count;
+        current.largest = largest;
+    }
+
+    /** Group the regions into rows and columns, and sort them in reading order */
+    private void findLayout() {
+        int n = current.count;
+        current.rows = 0;
+        current.columns = 0;
+        if (n == 0) {
+            current.layout = LAYOUT_NONE;
+            return;
+        }
+        float meanWidth = 0;
+        float meanHeight = 0;
+        for (int i = 0; i < n; ++i) {
+            meanWidth += current.right[i] - current.left[i];
+            meanHeight += current.bottom[i] - current.top[i];
+        }
+        meanWidth /= n;
+        meanHeight /= n;
+
+        // Rows: a region starts a new row if its centre is half a region below the row's first
+        sortBy(n, false);
+        int rows = 0;
+        float rowStart = 0;
+        for (int k = 0; k < n; ++k) {
+            int i = order[k];
+            if (k == 0 || current.centerY(i) - rowStart > meanHeight / 2) {
+                ++rows;
+                rowStart = current.centerY(i);
+            }
+            rowOf[i] = rows - 1;
+        }
+        sortBy(n, true);
+        int columns = 0;
+        float columnStart = 0;
+        for (int k = 0; k < n; ++k) {
+            int i = order[k];
+            if (k == 0 || current.centerX(i) - columnStart > meanWidth / 2) {
+                ++columns;
+                columnStart = current.centerX(i);
+            }
+        }
+        current.rows = rows;
+        current.columns = columns;
+        if (n == 1) {
+            current.layout = LAYOUT_SINGLE;
+        } else if (rows == 1 || columns == 1) {
+            current.layout = LAYOUT_STRIP;
+        } else if (n <= rows * columns && 4 * n >= 3 * rows * columns) {
+            current.layout = LAYOUT_PLATE;
+        } else {
+            current.layout = LAYOUT_SCATTERED;
+        }
+
+        // Reading order: by row, then left to right. order[] is already sorted by x.
+        for (int k = 1; k < n; ++k) {
+            int i = order[k];
+            int j = k - 1;
+            while (j >= 0 && rowOf[order[j]] > rowOf[i]) {
+                order[j + 1] = order[j];
+                --j;
+            }
+            order[j + 1] = i;
+        }
+        permute(n);
+    }
+
+    /** Insertion sort of region indices into {@link #order} by centre x or y, n is at most 96 */
+    private void sortBy(int n, boolean byX) {
+        for (int k = 0; k < n; ++k) {
+            int i = k;
+            float key = byX ? current.centerX(i) : current.centerY(i);
+            int j = k - 1;
+            while (j >= 0 && (byX ? current.centerX(order[j]) : current.centerY(order[j])) > key) {
+                order[j + 1] = order[j];
+                --j;
+            }
+            order[j + 1] = i;
+        }
+    }
+
+    /** Rearrange the regions of {@link #current} into {@link #order}, following cycles in place */
+    private void permute(int n) {
+        // rowOf is done with, it becomes the permutation and marks the places already filled
+        for (int start = 0; start < n; ++start) {
+            rowOf[start] = order[start];
+        }
+        for (int start = 0; start < n; ++start) {
+            if (rowOf[start] < 0) {
+                continue;
+            }
+            float l = current.left[start], t = current.top[start];
+            float r = current.right[start], b = current.bottom[start];
+            int a = current.area[start];
+            int dest = start;
+            int src = rowOf[dest];
+            while (src != start) {
+                moveRegion(src, dest);
+                rowOf[dest] = -1;
+                dest = src;
+                src = rowOf[dest];
+            }
+            current.left[dest] = l;
+            current.top[dest] = t;
+            current.right[dest] = r;
+            current.bottom[dest] = b;
+            current.area[dest] = a;
+            rowOf[dest] = -1;
+        }
+        current.largest = -1;
+        for (int i = 0; i < n; ++i) {
+            if (current.largest < 0 || current.area[i] > current.area[current.largest]) {
+                current.largest = i;
+            }
+        }
+    }
+
+    private void moveRegion(int from, int to) {
+        current.left[to] = current.left[from];
+        current.top[to] = current.top[from];
+        current.right[to] = current.right[from];
+        current.bottom[to] = current.bottom[from];
+        current.area[to] = current.area[from];
+    }
+}
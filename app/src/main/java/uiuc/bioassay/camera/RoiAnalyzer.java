@@ -0,0 +1,264 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/**
+ * Measures the colour of a region of interest on every preview frame.
+ * <p/>
+ * Each frame is reduced to an RGB grid at chroma resolution or coarser, and summed-area tables of
+ * the values and their squares are built for it. Mean and standard deviation of any rectangle then
+ * take four table lookups per channel whatever its size, so callers may {@link #query} as many
+ * regions as they like from {@link Listener#onRoiStats}. The median needs a histogram of the
+ * region and is only computed for the selected ROI.
+ */
+public class RoiAnalyzer implements FrameAnalyzer {
+    /** Grid cells are at most this many, bigger previews are reduced further */
+    private static final int MAX_CELLS = 640 * 480;
+    private static final int CHANNELS = 3;
+
+    /** Statistics of one region, channels in R, G, B order */
+    public static class RoiStats {
+        public final float[] mean = new float[CHANNELS];
+        public final float[] median = new float[CHANNELS];
+        public final float[] std = new float[CHANNELS];
+        public int cellCount;
+        public long timestampNs;
+
+        public void set(RoiStats other) {
+            System.arraycopy(other.mean, 0, mean, 0, CHANNELS);
+            System.arraycopy(other.median, 0, median, 0, CHANNELS);
+            System.arraycopy(other.std, 0, std, 0, CHANNELS);
+            cellCount = other.cellCount;
+            timestampNs = other.timestampNs;
+        }
+    }
+
+    /** Called on the preview processor thread after each frame, while the tables are valid */
+    public interface Listener {
+        void onRoiStats(RoiAnalyzer analyzer, RoiStats stats);
+    }
+
+    private final Listener listener;
+
+    // Guarded by this: the ROI as fractions of the frame
+    private final RectF roi = new RectF();
+    private boolean hasRoi = false;
+
+    // Only touched on the processor thread
+    private int step;
+    private int gridWidth;
+    private int gridHeight;
+    private int[] grid;
+    private int[][] sums;
+    private long[][] squareSums;
+    private final int[][] histograms = new int[CHANNELS][256];
+    private final RoiStats stats = new RoiStats();
+
+    public RoiAnalyzer(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Set the region as fractions of the frame in each direction, null to stop measuring */
+    public synchronized void setRoi(RectF normalized) {
+        if (normalized == null) {
+            hasRoi = false;
+        } else {
+            roi.set(normalized.left, normalized.top, normalized.right, normalized.bottom);
+            hasRoi = true;
+        }
+    }
+
+    public int getGridWidth() {
+        return gridWidth;
+    }
+
+    public int getGridHeight() {
+        return gridHeight;
+    }
+
+    @Override
+    public void onPreviewSizeChanged(int width, int height) {
+        step = 2;
+        while ((width / step) * (height / step) > MAX_CELLS) {
+            step *= 2;
+        }
+        gridWidth = width / step;
+        gridHeight = height / step;
+        int tableSize = (gridWidth + 1) * (gridHeight + 1);
+        grid = new int[gridWidth * gridHeight];
+        sums = new int[CHANNELS][tableSize];
+        squareSums = new long[CHANNELS][tableSize];
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        float left, top, right, bottom;
+        synchronized (this) {
+            if (!hasRoi) {
+                return;
+            }
+            left = roi.left;
+            top = roi.top;
+            right = roi.right;
+            bottom = roi.bottom;
+        }
+        if (grid == null || frame.width / step != gridWidth || frame.height / step != gridHeight) {
+            return;
+        }
+
+        buildTables(frame.data, frame.width, frame.height);
+        int x0 = clamp((int) (left * gridWidth), 0, gridWidth);
+        int y0 = clamp((int) (top * gridHeight), 0, gridHeight);
+        int x1 = clamp((int) Math.ceil(right * gridWidth), x0, gridWidth);
+        int y1 = clamp((int) Math.ceil(bottom * gridHeight), y0, gridHeight);
+        query(x0, y0, x1, y1, stats);
+        median(x0, y0, x1, y1, stats);
+        stats.timestampNs = frame.getTimestampNs();
+        listener.onRoiStats(this, stats);
+    }
+
+    /**
+     * Mean and standard deviation of grid cells [x0, x1) x [y0, y1) of the current frame.
+     * Only valid inside {@link Listener#onRoiStats}; the median is left untouched.
+     */
+    public void query(int x0, int y0, int x1, int y1, RoiStats out) {
+        int n = (x1 - x0) * (y1 - y0);
+        out.cellCount = n;
+        if (n <= 0) {
+            Arrays.fill(out.mean, 0);
+            Arrays.fill(out.std, 0);
+            return;
+        }
+        int stride = gridWidth + 1;
+        int a = y0 * stride + x0;
+        int b = y0 * stride + x1;
+        int c = y1 * stride + x0;
+        int d = y1 * stride + x1;
+        for (int ch = 0; ch < CHANNELS; ++ch) {
+            int[] s = sums[ch];
+            long[] q = squareSums[ch];
+            double mean = (double) (s[d] - s[b] - s[c] + s[a]) / n;
+            double meanSquare = (double) (q[d] - q[b] - q[c] + q[a]) / n;
+            out.mean[ch] = (float) mean;
+            out.std[ch] = (float) Math.sqrt(Math.max(0, meanSquare - mean * mean));
+        }
+    }
+
+    /**
+     * Mean and standard deviation of a region given as fractions of the frame, e.g. one of several
+     * regions measured at once. Only valid inside {@link Listener#onRoiStats}.
+     */
+    public void query(float left, float top, float right, float bottom, RoiStats out) {
+        int x0 = clamp((int) (left * gridWidth), 0, gridWidth);
+        int y0 = clamp((int) (top * gridHeight), 0, gridHeight);
+        int x1 = clamp((int) Math.ceil(right * gridWidth), x0, gridWidth);
+        int y1 = clamp((int) Math.ceil(bottom * gridHeight), y0, gridHeight);
+        query(x0, y0, x1, y1, out);
+    }
+
+    /** Reduce the frame to RGB cells and build the inclusive prefix sums */
+    private void buildTables(byte[] data, int width, int height) {
+        int stride = gridWidth + 1;
+        int[] sumR = sums[0], sumG = sums[1], sumB = sums[2];
+        long[] sqR = squareSums[0], sqG = squareSums[1], sqB = squareSums[2];
+        for (int gy = 0; gy < gridHeight; ++gy) {
+            int y = gy * step;
+            int rowR = 0, rowG = 0, rowB = 0;
+            long rowSqR = 0, rowSqG = 0, rowSqB = 0;
+            int above = gy * stride;
+            int here = above + stride;
+            for (int gx = 0; gx < gridWidth; ++gx) {
+                int x = gx * step;
+                int c = Nv21.chromaIndex(width, height, x, y);
+                int argb = Nv21.toArgb(data[y * width + x] & 0xFF, data[c + 1] & 0xFF, data[c] & 0xFF);
+                grid[gy * gridWidth + gx] = argb;
+                int r = (argb >> 16) & 0xFF;
+                int g = (argb >> 8) & 0xFF;
+                int b = argb & 0xFF;
+                rowR += r;
+                rowG += g;
+                rowB += b;
+                rowSqR += r * r;
+                rowSqG += g * g;
+                rowSqB += b * b;
+                sumR[here + gx + 1] = sumR[above + gx + 1] + rowR;
+                sumG[here + gx + 1] = sumG[above + gx + 1] + rowG;
+                sumB[here + gx + 1] = sumB[above + gx + 1] + rowB;
+                sqR[here + gx + 1] = sqR[above + gx + 1] + rowSqR;
+                sqG[here + gx + 1] = sqG[above + gx + 1] + rowSqG;
+                sqB[here + gx + 1] = sqB[above + gx + 1] + rowSqB;
+            }
+        }
+    }
+
+    private void median(int x0, int y0, int x1, int y1, RoiStats out) {
+        for (int[] histogram : histograms) {
+            Arrays.fill(histogram, 0);
+        }
+        for (int gy = y0; gy < y1; ++gy) {
+            for (int gx = x0; gx < x1; ++gx) {
+                int argb = grid[gy * gridWidth + gx];
+                ++histograms[0][(argb >> 16) & 0xFF];
+                ++histograms[1][(argb >> 8) & 0xFF];
+                ++histograms[2][argb & 0xFF];
+            }
+        }
+        int half = (out.cellCount + 1) / 2;
+        for (int ch = 0; ch < CHANNELS; ++ch) {
+            int seen = 0;
+            int value = 0;
+            while (value < 255 && seen + histograms[ch][value] < half) {
+                seen += histograms[ch][value++];
+            }
+            out.median[ch] = value;
+        }
+    }
+
+    private static int clamp(int x, int min, int max) {
+        return x < min ? min : (x > max ? max : x);
+    }
+}
@@ -0,0 +1,283 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.ImageFormat;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One file holding every frame of a capture session, so a burst costs one directory entry and one
+ * media scanner broadcast instead of one per frame.
+ * <p/>
+ * Layout, little endian: a header of {@link #MAGIC} and {@link #VERSION}, the frames back to back
+ * in the order they were written, an index of {@link #ENTRY_SIZE} byte entries (see {@link Entry})
+ * and a trailer of index offset (long), entry count and {@link #MAGIC}. The index is only written
+ * by {@link #close}. JPEG frames are stored as is, raw frames as {@link RawFrameRecord}s.
+ * <p/>
+ * Appends are thread safe.
+ */
+public class SessionContainer implements Closeable {
+    public static final int MAGIC = 0x31435342; // "BSC1"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int ENTRY_SIZE = 48;
+    public static final int TRAILER_SIZE = 16;
+
+    /** Where one frame is and what it is */
+    public static class Entry {
+        public final long offset;
+        public final int length;
+        /** Shot number within the session */
+        public final int index;
+        /** {@link ImageFormat#JPEG}, or the format of a {@link RawFrameRecord} */
+        public final int format;
+        /** Frame size, 0 when not known, e.g. for camera JPEGs */
+        public final int width;
+        public final int height;
+        /** Capture time from {@link System#nanoTime()} */
+        public final long timestampNs;
+        /** Capture time from {@link System#currentTimeMillis()} */
+        public final long timeMillis;
+        /** Scene motion when the frame was taken, see {@link MotionDetector}; NaN if not measured */
+        public final float motion;
+
+        Entry(long offset, int length, int index, int format, int width, int height, long timestampNs,
+              long timeMillis, float motion) {
+            this.offset = offset;
+            this.length = length;
+            this.index = index;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.timestampNs = timestampNs;
+            this.timeMillis = timeMillis;
+            this.motion = motion;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final List<Entry> entries = new ArrayList<>();
+    private long end;
+    private boolean closed = false;
+
+    /** Create the file, replacing any existing one */
+    public SessionContainer(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        raf.setLength(0);
+        ByteBuffer start = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        start.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(start, 0);
+        end = HEADER_SIZE;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized int getFrameCount() {
+        return entries.size();
+    }
+
+    /** Append the first {@code length} bytes of a JPEG */
+    public synchronized void appendJpeg(int index, byte[] jpeg, int length, long timestampNs, long timeMillis,
+                                        float motion) throws IOException {
+        checkOpen();
+        writeFully(ByteBuffer.wrap(jpeg, 0, length), end);
+        entries.add(new Entry(end, length, index, ImageFormat.JPEG, 0, 0, timestampNs, timeMillis,
+                motion));
+        end += length;
+    }
+
+    /** Append a raw frame. The record is written through a map of its region, like a single file. */
+    public synchronized void appendRaw(int index, byte[] frame, int length, int format, int width, int height,
+                                       long timestampNs, long timeMillis, float motion) throws IOException {
+        checkOpen();
+        int recordLength = RawFrameRecord.HEADER_SIZE + length;
+        raf.setLength(end + recordLength);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, end, recordLength);
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        RawFrameRecord.putHeader(map, format, width, height, length, timestampNs);
+        map.put(frame, 0, length);
+        entries.add(new Entry(end, recordLength, index, format, width, height, timestampNs, timeMillis,
+                motion));
+        end += recordLength;
+    }
+
+    /** Write the index and close the file. Nothing can be appended afterwards. */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            ByteBuffer index = ByteBuffer.allocate(entries.size() * ENTRY_SIZE + TRAILER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            for (Entry entry : entries) {
+                index.putLong(entry.offset).putInt(entry.length).putInt(entry.index).putInt(entry.format)
+                        .putInt(entry.width).putInt(entry.height).putLong(entry.timestampNs)
+                        .putLong(entry.timeMillis).putFloat(entry.motion);
+            }
+            index.putLong(end).putInt(entries.size()).putInt(MAGIC).flip();
+            writeFully(index, end);
+            raf.setLength(end + index.limit());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Session already closed: " + file.getName());
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /** Reads a closed session, the frames are mapped rather than copied */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final Entry[] entries;
+
+        public Reader(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            try {
+                long size = channel.size();
+                ByteBuffer header = read(0, HEADER_SIZE);
+                if (header.getInt() != MAGIC) {
+                    throw new IOException("Not a session: " + file.getName());
+                }
+                int version = header.getInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported session version " + version + ": " + file.getName());
+                }
+                ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+                long indexOffset = trailer.getLong();
+                int count = trailer.getInt();
+                if (size < HEADER_SIZE + TRAILER_SIZE || trailer.getInt() != MAGIC ||
+                        count < 0 || indexOffset + (long) count * ENTRY_SIZE != size - TRAILER_SIZE) {
+                    throw new IOException("Not a closed session: " + file.getName());
+                }
+                ByteBuffer index = read(indexOffset, count * ENTRY_SIZE);
+                entries = new Entry[count];
+                for (int i = 0; i < count; ++i) {
+                    entries[i] = new Entry(index.getLong(), index.getInt(), index.getInt(), index.getInt(),
+                            index.getInt(), index.getInt(), index.getLong(), index.getLong(), index.getFloat());
+                }
+            } catch (IOException | RuntimeException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        public int getFrameCount() {
+            return entries.length;
+        }
+
+        public Entry getEntry(int i) {
+            return entries[i];
+        }
+
+        /** Read only map of a frame's bytes, JPEG data or a raw frame record */
+        public ByteBuffer map(int i) throws IOException {
+            Entry entry = entries[i];
+            return channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /** Copy of a frame's bytes, e.g. for BitmapFactory */
+        public byte[] readBytes(int i) throws IOException {
+            ByteBuffer frame = map(i);
+            byte[] bytes = new byte[frame.remaining()];
+            frame.get(bytes);
+            return bytes;
+        }
+
+        /** A raw frame, valid after the reader is closed */
+        public RawFrameRecord readRaw(int i) throws IOException {
+            if (entries[i].format == ImageFormat.JPEG) {
+                throw new IOException("Frame " + i + " is a JPEG");
+            }
+            return RawFrameRecord.readFrom(map(i), "frame " + i);
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+
+        private ByteBuffer read(long position, int length) throws IOException {
+            if (position < 0) {
+                throw new IOException("Truncated session");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Truncated session");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.RectF;
+
+/**
+ * Scores how well each preview frame is focused and reports when it has been sharp for a while.
+ * <p/>
+ * The score is the variance of the Laplacian of the luma plane, averaged down to at most
+ * {@link #MAX_CELLS} cells: edges in focus give large second derivatives of both signs, blur
+ * flattens them. The Y plane is used as is, so no colour conversion is needed, and the reduced
+ * plane is allocated in {@link #onPreviewSizeChanged}, so scoring a frame does not allocate.
+ * <p/>
+ * {@link Listener#onSharp} fires once the score has stayed at or above the threshold for the
+ * required number of frames in a row. It fires once per such run; the score has to drop below the
+ * threshold before it can fire again, so a sample left in front of the camera is captured once.
+ */
+public class SharpnessAnalyzer implements FrameAnalyzer {
+    /** Reduced luma planes are at most this many cells, bigger previews are averaged further */
+    private static final int MAX_CELLS = 320 * 240;
+
+    /** Called on the preview processor thread */
+    public interface Listener {
+        /** For every scored frame */
+        void onSharpness(SharpnessAnalyzer analyzer, float score, long timestampNs);
+
+        /** The score has been at or above the threshold for the required number of frames */
+        void onSharp(SharpnessAnalyzer analyzer, float score, long timestampNs);
+    }
+
+    private final Listener listener;
+    private final float threshold;
+    private final int requiredFrames;
+
+    // Guarded by this: the scored region as fractions of the frame
+    private final RectF region = new RectF(0, 0, 1, 1);
+
+    // Only touched on the processor thread
+    private int step;
+    private int gridWidth;
+    private int gridHeight;
+    private int[] luma;
+    private int sharpFrames = 0;
+    private volatile float latestScore = 0;
+
+    /**
+     * @param threshold      score a frame needs to count as sharp
+     * @param requiredFrames consecutive sharp frames needed before {@link Listener#onSharp}
+     */
+    public SharpnessAnalyzer(float threshold, int requiredFrames, Listener listener) {
+        this.threshold = threshold;
+        this.requiredFrames = Math.max(1, requiredFrames);
+        this.listener = listener;
+    }
+
+    /** Only score part of the frame, as fractions of the frame in each direction; null for all of it */
+    public synchronized void setRegion(RectF normalized) {
+        if (normalized == null) {
+            region.set(0, 0, 1, 1);
+        } else {
+            region.set(normalized.left, normalized.top, normalized.right, normalized.bottom);
+        }
+    }
+
+    /** Score of the last frame, may be called from any thread */
+    public float getLatestScore() {
+        return latestScore;
+    }
+
+    public float getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public void onPreviewSizeChanged(int width, int height) {
+        step = 1;
+        while ((width / step) * (height / step) > MAX_CELLS) {
+            step *= 2;
+        }
+        gridWidth = width / step;
+        gridHeight = height / step;
+        luma = new int[gridWidth * gridHeight];
+        sharpFrames = 0;
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        if (luma == null || frame.width / step != gridWidth || frame.height / step != gridHeight) {
+            return;
+        }
+        int x0, y0, x1, y1;
+        synchronized (this) {
+            x0 = clamp((int) (region.left * gridWidth), 0, gridWidth);
+            y0 = clamp((int) (region.top * gridHeight), 0, gridHeight);
+            x1 = clamp((int) Math.ceil(region.right * gridWidth), x0, gridWidth);
+            y1 = clamp((int) Math.ceil(region.bottom * gridHeight), y0, gridHeight);
+        }
+        // The Laplacian needs a neighbour on every side
+        if (x1 - x0 < 3 || y1 - y0 < 3) {
+            return;
+        }
+
+        reduce(frame.data, frame.width, x0, y0, x1, y1);
+        float score = laplacianVariance(x0, y0, x1, y1);
+        latestScore = score;
+        long timestampNs = frame.getTimestampNs();
+        listener.onSharpness(this, score, timestampNs);
+
+        if (score < threshold) {
+            sharpFrames = 0;
+        } else if (++sharpFrames == requiredFrames) {
+            listener.onSharp(this, score, timestampNs);
+        }
+    }
+
+    /** Average step x step blocks of the Y plane into cells [x0, x1) x [y0, y1) */
+    private void reduce(byte[] data, int width, int x0, int y0, int x1, int y1) {
+        int shift = Integer.numberOfTrailingZeros(step * step);
+        for (int gy = y0; gy < y1; ++gy) {
+            int row = gy * gridWidth;
+            for (int gx = x0; gx < x1; ++gx) {
+                int sum = 0;
+                int offset = gy * step * width + gx * step;
+                for (int dy = 0; dy < step; ++dy, offset += width) {
+                    for (int dx = 0; dx < step; ++dx) {
+                        sum += data[offset + dx] & 0xFF;
+                    }
+                }
+                luma[row + gx] = sum >> shift;
+            }
+        }
+    }
+
+    /** Variance of the 4-neighbour Laplacian over the interior of the region */
+    private float laplacianVariance(int x0, int y0, int x1, int y1) {
+        long sum = 0;
+        long squareSum = 0;
+        for (int gy = y0 + 1; gy < y1 - 1; ++gy) {
+            int row = gy * gridWidth;
+            for (int gx = x0 + 1; gx < x1 - 1; ++gx) {
+                int i = row + gx;
+                int laplacian = 4 * luma[i] - luma[i - 1] - luma[i + 1] - luma[i - gridWidth] -
+                        luma[i + gridWidth];
+                sum += laplacian;
+                squareSum += laplacian * laplacian;
+            }
+        }
+        long n = (long) (x1 - x0 - 2) * (y1 - y0 - 2);
+        double mean = (double) sum / n;
+        return (float) Math.max(0, (double) squareSum / n - mean * mean);
+    }
+
+    private static int clamp(int x, int min, int max) {
+        return x < min ? min : (x > max ? max : x);
+    }
+}
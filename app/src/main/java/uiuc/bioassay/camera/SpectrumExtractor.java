@@ -0,0 +1,225 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import android.graphics.RectF;
+import android.os.Build;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Intensity profile along a strip of the preview, for a diffraction grating in front of the lens.
+ * <p/>
+ * The dispersion axis is taken to run along the longer side of the strip. Every frame the Y plane
+ * is summed across the strip, giving the mean luma at each position along it, and the result is
+ * optionally smoothed by a running mean over about the last N frames. Sums are taken row by row
+ * in memory order, and the profile buffers are allocated when the preview size changes, so a frame
+ * does not allocate.
+ */
+public class SpectrumExtractor implements FrameAnalyzer {
+    /** A profile, valid inside {@link Listener#onSpectrum} or once copied with {@link #set} */
+    public static class Spectrum {
+        /** Mean luma at each position along the strip, the first {@link #length} are valid */
+        public float[] values = new float[0];
+        public int length;
+        /** Whether the positions run along x, otherwise along y */
+        public boolean horizontal;
+        /** Frame coordinate of the first position */
+        public int start;
+        /** Number of frames averaged into the values */
+        public int frameCount;
+        public long timestampNs;
+
+        /** Copy another spectrum, only allocates if it is longer than any copied before */
+        public void set(Spectrum other) {
+            if (values.length < other.length) {
+                values = new float[other.values.length];
+            }
+            System.arraycopy(other.values, 0, values, 0, other.length);
+            length = other.length;
+            horizontal = other.horizontal;
+            start = other.start;
+            frameCount = other.frameCount;
+            timestampNs = other.timestampNs;
+        }
+
+        /** Write the spectrum as CSV of frame position and intensity */
+        public void export(File file) throws IOException {
+            Writer out = new BufferedWriter(new FileWriter(file));
+            try {
+                out.write("# model=" + Build.MANUFACTURER + " " + Build.MODEL + "\n");
+                out.write("# time_ms=" + System.currentTimeMillis() + "\n");
+                out.write("# axis=" + (horizontal ? "x" : "y") + " frames=" + frameCount + "\n");
+                out.write("position,intensity\n");
+                for (int i = 0; i < length; ++i) {
+                    out.write((start + i) + "," + values[i] + "\n");
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /** Called on the preview processor thread after each frame */
+    public interface Listener {
+        void onSpectrum(SpectrumExtractor extractor, Spectrum spectrum);
+    }
+
+    private final Listener listener;
+
+    // Guarded by this: the strip as fractions of the frame, and the averaging window
+    private final RectF strip = new RectF();
+    private boolean hasStrip = false;
+    private int averaging = 1;
+    private boolean reset = true;
+
+    // Only touched on the processor thread
+    private int width;
+    private int height;
+    private int[] sums;
+    private final Spectrum spectrum = new Spectrum();
+
+    public SpectrumExtractor(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Set the strip as fractions of the frame in each direction, null to stop extracting */
+    public synchronized void setStrip(RectF normalized) {
+        if (normalized == null) {
+            hasStrip = false;
+        } else {
+            strip.set(normalized.left, normalized.top, normalized.right, normalized.bottom);
+            hasStrip = true;
+        }
+        reset = true;
+    }
+
+    /** Smooth the profile over about this many frames, 1 for none */
+    public synchronized void setAveraging(int frames) {
+        averaging = Math.max(1, frames);
+        reset = true;
+    }
+
+    @Override
+    public void onPreviewSizeChanged(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int longest = Math.max(width, height);
+        sums = new int[longest];
+        spectrum.values = new float[longest];
+        synchronized (this) {
+            reset = true;
+        }
+    }
+
+    @Override
+    public void onFrame(PreviewFrame frame) {
+        int x0, y0, x1, y1, window;
+        synchronized (this) {
+            if (!hasStrip) {
+                return;
+            }
+            x0 = clamp((int) (strip.left * width), 0, width);
+            y0 = clamp((int) (strip.top * height), 0, height);
+            x1 = clamp((int) Math.ceil(strip.right * width), x0, width);
+            y1 = clamp((int) Math.ceil(strip.bottom * height), y0, height);
+            window = averaging;
+            if (reset) {
+                spectrum.frameCount = 0;
+                reset = false;
+            }
+        }
+        if (sums == null || frame.width != width || frame.height != height || x1 == x0 || y1 == y0) {
+            return;
+        }
+
+        boolean horizontal = x1 - x0 >= y1 - y0;
+        int length = horizontal ? x1 - x0 : y1 - y0;
+        int across = horizontal ? y1 - y0 : x1 - x0;
+        sumStrip(frame.data, x0, y0, x1, y1, horizontal);
+
+        // Plain mean of the first window frames, then an exponential mean with weight 1 / window
+        int n = Math.min(spectrum.frameCount + 1, window);
+        float[] values = spectrum.values;
+        for (int i = 0; i < length; ++i) {
+            float mean = (float) sums[i] / across;
+            values[i] = n == 1 ? mean : values[i] + (mean - values[i]) / n;
+        }
+        spectrum.length = length;
+        spectrum.horizontal = horizontal;
+        spectrum.start = horizontal ? x0 : y0;
+        spectrum.frameCount = n;
+        spectrum.timestampNs = frame.getTimestampNs();
+        listener.onSpectrum(this, spectrum);
+    }
+
+    private void sumStrip(byte[] data, int x0, int y0, int x1, int y1, boolean horizontal) {
+        int[] sums = this.sums;
+        int length = horizontal ? x1 - x0 : y1 - y0;
+        for (int i = 0; i < length; ++i) {
+            sums[i] = 0;
+        }
+        for (int y = y0; y < y1; ++y) {
+            int row = y * width;
+            if (horizontal) {
+                for (int x = x0; x < x1; ++x) {
+                    sums[x - x0] += data[row + x] & 0xFF;
+                }
+            } else {
+                int sum = 0;
+                for (int x = x0; x < x1; ++x) {
+                    sum += data[row + x] & 0xFF;
+                }
+                sums[y - y0] = sum;
+            }
+        }
+    }
+
+    private static int clamp(int x, int min, int max) {
+        return x < min ? min : (x > max ? max : x);
+    }
+}
@@ -12,33 +12,208 @@ import android.view.View;
  */
 
 public class TouchRectView extends View {
-    private Rect rect = null;
+    /** Most regions drawn at once, enough for a 96 well plate */
+    public static final int MAX_REGIONS = 96;
+    /** Room for the label of a region, e.g. "-1234.5" */
+    private static final int LABEL_CHARS = 8;
+    private static final float STROKE_WIDTH = 3;
+    private static final float LABEL_SIZE = 24;
+    /** Added around changed shapes when invalidating, so their strokes are redrawn too */
+    private static final int DIRTY_MARGIN = 4;
+
+    private final Rect rect = new Rect();
     private Paint paint;
+    private final Rect roi = new Rect();
+    private Paint roiPaint;
+
+    // Regions in view coordinates, the edges of all of them are drawn with a single drawLines call
+    private int regionCount = 0;
+    private final float[] regionLines = new float[MAX_REGIONS * 16];
+    private final int[] regionBounds = new int[MAX_REGIONS * 4];
+    private Paint regionPaint;
+
+    // Labels are formatted into a char buffer per region, so updating one allocates nothing
+    private final char[] labels = new char[MAX_REGIONS * LABEL_CHARS];
+    private final int[] labelLengths = new int[MAX_REGIONS];
+    private final int[] labelTenths = new int[MAX_REGIONS];
+    private final char[] digits = new char[LABEL_CHARS];
+    private Paint labelPaint;
+    private final int labelWidth;
+    private final int labelHeight;
+
+    private final Rect dirty = new Rect();
 
     public TouchRectView(Context context, AttributeSet attrs) {
         super(context, attrs);
         paint = new Paint();
         paint.setColor(0xeed7d7d7);
         paint.setStyle(Paint.Style.STROKE);
-        paint.setStrokeWidth(3);
+        paint.setStrokeWidth(STROKE_WIDTH);
+        roiPaint = new Paint();
+        roiPaint.setColor(0xee4caf50);
+        roiPaint.setStyle(Paint.Style.STROKE);
+        roiPaint.setStrokeWidth(STROKE_WIDTH);
+        regionPaint = new Paint();
+        regionPaint.setColor(0xeeffc107);
+        regionPaint.setStyle(Paint.Style.STROKE);
+        regionPaint.setStrokeWidth(STROKE_WIDTH);
+        labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        labelPaint.setColor(0xffffffff);
+        labelPaint.setTextSize(LABEL_SIZE);
+        labelWidth = (int) Math.ceil(labelPaint.measureText("-8888.8"));
+        labelHeight = (int) Math.ceil(LABEL_SIZE * 1.25f);
     }
 
+    /** Square where the screen was tapped, null to hide it. The rect is copied. */
     public void setRect(Rect rect) {
-        this.rect = rect;
+        replace(this.rect, rect);
+    }
+
+    /** Region of interest, drawn until it is replaced or set to null. The rect is copied. */
+    public void setRoi(Rect roi) {
+        replace(this.roi, roi);
     }
 
     public void setRectPaint(Rect rect, Paint paint) {
-        this.rect = rect;
         this.paint = paint;
+        // The old and new squares are redrawn, so the new paint shows as well
+        replace(this.rect, rect);
+    }
+
+    /**
+     * Draw these regions, in view coordinates, instead of the previous ones; their labels are
+     * cleared. Only the area the old and new regions cover is redrawn.
+     */
+    public void setRegions(int count, float[] left, float[] top, float[] right, float[] bottom) {
+        count = Math.min(count, MAX_REGIONS);
+        dirty.setEmpty();
+        addRegionsToDirty();
+        for (int i = 0; i < count; ++i) {
+            float l = left[i], t = top[i], r = right[i], b = bottom[i];
+            int k = i * 16;
+            // Top, right, bottom and left edges
+            regionLines[k] = l;
+            regionLines[k + 1] = t;
+            regionLines[k + 2] = r;
+            regionLines[k + 3] = t;
+            regionLines[k + 4] = r;
+            regionLines[k + 5] = t;
+            regionLines[k + 6] = r;
+            regionLines[k + 7] = b;
+            regionLines[k + 8] = r;
+            regionLines[k + 9] = b;
+            regionLines[k + 10] = l;
+            regionLines[k + 11] = b;
+            regionLines[k + 12] = l;
+            regionLines[k + 13] = b;
+            regionLines[k + 14] = l;
+            regionLines[k + 15] = t;
+            regionBounds[i * 4] = (int) Math.floor(l);
+            regionBounds[i * 4 + 1] = (int) Math.floor(t);
+            regionBounds[i * 4 + 2] = (int) Math.ceil(r);
+            regionBounds[i * 4 + 3] = (int) Math.ceil(b);
+            labelLengths[i] = 0;
+        }
+        regionCount = count;
+        addRegionsToDirty();
+        invalidateDirty();
+    }
+
+    /**
+     * Show a value, to one decimal, in the corner of a region. Only that label is redrawn, and only
+     * if its text changed.
+     */
+    public void setRegionValue(int region, float value) {
+        if (region >= regionCount) {
+            return;
+        }
+        int tenths = Math.round(value * 10);
+        if (labelLengths[region] > 0 && labelTenths[region] == tenths) {
+            return;
+        }
+        labelTenths[region] = tenths;
+        labelLengths[region] = format(tenths, labels, region * LABEL_CHARS);
+        int left = regionBounds[region * 4];
+        int top = regionBounds[region * 4 + 1];
+        invalidate(left, top, left + labelWidth + DIRTY_MARGIN, top + labelHeight + DIRTY_MARGIN);
     }
 
     @Override
     public void onDraw(Canvas canvas) {
-        if (rect != null) {
+        if (!rect.isEmpty()) {
             canvas.drawRect(
                     rect.left, rect.top, rect.right, rect.bottom,
                     paint);
         }
+        if (!roi.isEmpty()) {
+            canvas.drawRect(
+                    roi.left, roi.top, roi.right, roi.bottom,
+                    roiPaint);
+        }
+        if (regionCount > 0) {
+            canvas.drawLines(regionLines, 0, regionCount * 16, regionPaint);
+            for (int i = 0; i < regionCount; ++i) {
+                if (labelLengths[i] > 0) {
+                    canvas.drawText(labels, i * LABEL_CHARS, labelLengths[i],
+                            regionBounds[i * 4] + STROKE_WIDTH, regionBounds[i * 4 + 1] + LABEL_SIZE,
+                            labelPaint);
+                }
+            }
+        }
+    }
+
+    /** Copy a shape, or empty it for null, and redraw where it was and where it is */
+    private void replace(Rect shape, Rect value) {
+        dirty.set(shape);
+        if (value == null) {
+            shape.setEmpty();
+        } else {
+            shape.set(value);
+            dirty.union(value);
+        }
+        invalidateDirty();
+    }
+
+    private void addRegionsToDirty() {
+        for (int i = 0; i < regionCount; ++i) {
+            dirty.union(regionBounds[i * 4], regionBounds[i * 4 + 1],
+                    regionBounds[i * 4 + 2], regionBounds[i * 4 + 3]);
+        }
+    }
+
+    /**
+     * Only software layers redraw just the dirty rect: from API 21 a hardware accelerated view
+     * ignores the bounds and redraws all of its display list, the saving is then only in not
+     * redrawing when nothing changed.
+     */
+    private void invalidateDirty() {
+        if (!dirty.isEmpty()) {
+            invalidate(dirty.left - DIRTY_MARGIN, dirty.top - DIRTY_MARGIN,
+                    dirty.right + DIRTY_MARGIN, dirty.bottom + DIRTY_MARGIN);
+        }
     }
 
+    /** Write tenths as a decimal with one fractional digit, returns the number of chars */
+    private int format(int tenths, char[] out, int offset) {
+        boolean negative = tenths < 0;
+        int rest = Math.abs(tenths);
+        int fraction = rest % 10;
+        rest /= 10;
+        int count = 0;
+        // Digits come out in reverse, keep room for the sign, point and fraction
+        do {
+            digits[count++] = (char) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest > 0 && count < LABEL_CHARS - 3);
+        int length = 0;
+        if (negative) {
+            out[offset + length++] = '-';
+        }
+        while (count > 0) {
+            out[offset + length++] = digits[--count];
+        }
+        out[offset + length++] = '.';
+        out[offset + length++] = (char) ('0' + fraction);
+        return length;
+    }
 }
@@ -0,0 +1,204 @@
+/**
+ * University of Illinois
+ Open Source License
+
+ Copyright © <2015>, <University of Illinois at Urbana-Champaign>. All rights reserved.
+ All rights reserved.
+
+ Developed by:
+
+ Smartphone Bioassay Team
+
+ University of Illinois at Urbana-Champaign
+
+ http://sb.illinois.edu
+
+ Permission is hereby granted, free of charge, to any person obtaining a copy of
+ this software and associated documentation files (the "Software"), to deal with
+ the Software without restriction, including without limitation the rights to
+ use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies
+ of the Software, and to permit persons to whom the Software is furnished to do
+ so, subject to the following conditions:
+
+ * Redistributions of source code must retain the above copyright notice,
+ this list of conditions and the following disclaimers.
+
+ * Redistributions in binary form must reproduce the above copyright notice,
+ this list of conditions and the following disclaimers in the
+ documentation and/or other materials provided with the distribution.
+
+ * Neither the names of the Smartphone Bioassay Team, University of Illinois at
+ Urbana-Champaign, nor the names of its contributors may be used to
+ endorse or promote products derived from this Software without specific
+ prior written permission.
+
+ THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ CONTRIBUTORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS WITH THE
+ SOFTWARE.
+ */
+package uiuc.bioassay.camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the most recent preview frames for zero shutter lag capture.
+ * <p/>
+ * Frames are copied into one direct buffer holding a fixed number of slots, so memory use is
+ * known up front and copying a frame in does not allocate. {@link #snapshot} picks the frames
+ * closest to a given time, e.g. when the capture button was pressed, and copies them into a
+ * {@link Snapshot} allocated with the ring. The snapshot is reused once it is released, so taking
+ * one does not allocate either, and a new one cannot be taken while the last is still in use.
+ */
+public class ZslRingBuffer implements FrameAnalyzer {
+    /** NV21 frames copied out of the ring, oldest first */
+    public static class Snapshot {
+        public final int width;
+        public final int height;
+        public final byte[][] frames;
+        public final long[] timestampsNs;
+        // Guarded by the ring
+        private int count;
+        private boolean inUse;
+
+        private Snapshot(int width, int height, int frameCount) {
+            this.width = width;
+            this.height = height;
+            frames = new byte[frameCount][width * height * 3 / 2];
+            timestampsNs = new long[frameCount];
+        }
+
+        /** Number of frames copied, less than there are buffers if the ring was not full yet */
+        public int getCount() {
+            return count;
+        }
+    }
+
+    private final int capacity;
+    private final int snapshotSize;
+
+    // Guarded by this
+    private ByteBuffer ring;
+    private Snapshot snapshot;
+    private long[] timestamps;
+    private int frameSize;
+    private int width;
+    private int height;
+    private int head = 0;
+    private int count = 0;
+
+    /**
+     * @param capacity     number of preview frames kept
+     * @param snapshotSize number of frames copied out by {@link #snapshot}
+     */
+    public ZslRingBuffer(int capacity, int snapshotSize) {
+        this.capacity = capacity;
+        this.snapshotSize = snapshotSize;
+        timestamps = new long[capacity];
+    }
+
+    @Override
+    public synchronized void onPreviewSizeChanged(int width, int height) {
+        int size = width * height * 3 / 2;
+        if (ring == null || size != frameSize) {
+            ring = ByteBuffer.allocateDirect(size * capacity);
+            frameSize = size;
+        }
+        if (snapshot == null || snapshot.width != width || snapshot.height != height) {
+            // One still in use keeps its buffers until its users drop it
+            snapshot = new Snapshot(width, height, snapshotSize);
+        }
+        this.width = width;
+        this.height = height;
+        head = 0;
+        count = 0;
+    }
+
+    @Override
+    public synchronized void onFrame(PreviewFrame frame) {
+        if (ring == null || frame.width != width || frame.height != height) {
+            return;
+        }
+        ring.position(head * frameSize);
+        ring.put(frame.data, 0, frameSize);
+        timestamps[head] = frame.getTimestampNs();
+        head = (head + 1) % capacity;
+        if (count < capacity) {
+            ++count;
+        }
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    /** Whether the last snapshot has not been released yet */
+    public synchronized boolean isSnapshotInUse() {
+        return snapshot != null && snapshot.inUse;
+    }
+
+    /**
+     * Copy the frames nearest to {@code timeNs} into the snapshot, which stays in use until it is
+     * passed to {@link #release}.
+     *
+     * @return null if there are no frames yet or the last snapshot is still in use
+     */
+    public synchronized Snapshot snapshot(long timeNs) {
+        if (snapshot == null || snapshot.inUse || count == 0) {
+            return null;
+        }
+        int wanted = Math.min(snapshot.frames.length, count);
+
+        // Ring positions are in time order, 0 is the oldest frame
+        int nearest = 0;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < count; ++i) {
+            long distance = Math.abs(timestamps[slot(i)] - timeNs);
+            if (distance < best) {
+                best = distance;
+                nearest = i;
+            }
+        }
+
+        // Grow a window around the nearest frame, taking whichever neighbour is closer in time
+        int first = nearest;
+        int last = nearest;
+        while (last - first + 1 < wanted) {
+            if (first == 0) {
+                ++last;
+            } else if (last == count - 1) {
+                --first;
+            } else if (timeNs - timestamps[slot(first - 1)] <= timestamps[slot(last + 1)] - timeNs) {
+                --first;
+            } else {
+                ++last;
+            }
+        }
+
+        for (int i = first; i <= last; ++i) {
+            int slot = slot(i);
+            ring.position(slot * frameSize);
+            ring.get(snapshot.frames[i - first], 0, frameSize);
+            snapshot.timestampsNs[i - first] = timestamps[slot];
+        }
+        snapshot.count = wanted;
+        snapshot.inUse = true;
+        return snapshot;
+    }
+
+    /** The frames of the snapshot are no longer used, the next snapshot may overwrite them */
+    public synchronized void release(Snapshot snapshot) {
+        snapshot.inUse = false;
+    }
+
+    private int slot(int position) {
+        return (head - count + position + capacity) % capacity;
+    }
+}
@@ -0,0 +1,38 @@
+package uiuc.bioassay.camera;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Float and 8 bit corrections of {@link ColorCorrection} agree.
+ */
+public class ColorCorrectionTest {
+    private static final ColorCorrection CORRECTION = ColorCorrection.fitNeutral(new float[]{160f, 100f, 80f});
+
+    @Test
+    public void fitsGainsFromGreyPatch() {
+        assertEquals(0.625f, CORRECTION.getGain(0), 1e-6f);
+        assertEquals(1f, CORRECTION.getGain(1), 1e-6f);
+        assertEquals(1.25f, CORRECTION.getGain(2), 1e-6f);
+        assertNull(ColorCorrection.fitNeutral(new float[]{100f, 100f, 2f}));
+    }
+
+    @Test
+    public void floatCorrectionMatchesLookup() {
+        for (int v = 0; v < 256; ++v) {
+            int argb = CORRECTION.apply(0xff000000 | (v << 16) | (v << 8) | v);
+            assertEquals((argb >> 16) & 0xFF, Math.min(255, Math.round(CORRECTION.correct(0, v))));
+            assertEquals((argb >> 8) & 0xFF, Math.min(255, Math.round(CORRECTION.correct(1, v))));
+            assertEquals(argb & 0xFF, Math.min(255, Math.round(CORRECTION.correct(2, v))));
+        }
+    }
+
+    @Test
+    public void floatCorrectionInterpolatesAndClampsInput() {
+        assertEquals(10.5f * 1.25f, CORRECTION.correct(2, 10.5f), 1e-4f);
+        assertEquals(0f, CORRECTION.correct(2, -3f), 0f);
+        assertEquals(255f * 1.25f, CORRECTION.correct(2, 300f), 1e-4f);
+    }
+}
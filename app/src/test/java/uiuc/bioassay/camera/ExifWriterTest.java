@@ -0,0 +1,196 @@
+package uiuc.bioassay.camera;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tags written by {@link ExifWriter} into JPEGs with and without a camera Exif segment.
+ */
+public class ExifWriterTest {
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MAKER_NOTE = 0x927C;
+    private static final int TAG_DATE_TIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_EXPOSURE_TIME = 0x829A;
+    private static final int TAG_IMAGE_NUMBER = 0x9211;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int IMAGE_NUMBER = 7;
+
+    @Test
+    public void insertsSegmentWithImageNumberInExifIfd() throws IOException {
+        byte[] jpeg = jpeg(null);
+        Tiff tiff = Tiff.parse(write(jpeg, true));
+        int ifd0 = tiff.ifd0();
+        assertTrue(tiff.find(ifd0, TAG_DATE_TIME) >= 0);
+        assertEquals(-1, tiff.find(ifd0, TAG_IMAGE_NUMBER));
+        int exif = tiff.value(ifd0, TAG_EXIF_IFD);
+        assertEquals(IMAGE_NUMBER, tiff.value(exif, TAG_IMAGE_NUMBER));
+    }
+
+    @Test
+    public void extendsCameraSegmentKeepingItsTags() throws IOException {
+        byte[] jpeg = jpeg(cameraTiff(100, 0));
+        Tiff tiff = Tiff.parse(write(jpeg, true));
+        int ifd0 = tiff.ifd0();
+        assertEquals(0x11223344, tiff.value(ifd0, TAG_MAKE));
+        int exif = tiff.value(ifd0, TAG_EXIF_IFD);
+        assertEquals(0x55667788, tiff.value(exif, TAG_EXPOSURE_TIME));
+        assertEquals(IMAGE_NUMBER, tiff.value(exif, TAG_IMAGE_NUMBER));
+        // The thumbnail is still linked and where it was
+        int ifd1 = tiff.nextIfd(ifd0);
+        assertEquals(100, tiff.value(ifd1, TAG_THUMBNAIL_LENGTH));
+        assertEquals((byte) 0xAB, tiff.data.get(tiff.start + tiff.value(ifd1, TAG_THUMBNAIL_OFFSET)));
+    }
+
+    @Test
+    public void dropsThumbnailWhenSegmentIsFull() throws IOException {
+        byte[] jpeg = jpeg(cameraTiff(65350, 0));
+        Tiff tiff = Tiff.parse(write(jpeg, true));
+        int ifd0 = tiff.ifd0();
+        assertEquals(0, tiff.nextIfd(ifd0));
+        assertEquals(0x11223344, tiff.value(ifd0, TAG_MAKE));
+        int exif = tiff.value(ifd0, TAG_EXIF_IFD);
+        assertEquals(0x55667788, tiff.value(exif, TAG_EXPOSURE_TIME));
+        assertEquals(IMAGE_NUMBER, tiff.value(exif, TAG_IMAGE_NUMBER));
+    }
+
+    @Test
+    public void writesUnchangedWhenNothingCanBeDropped() throws IOException {
+        // A full segment whose bulk is a maker note rather than a thumbnail
+        byte[] jpeg = jpeg(cameraTiff(100, 65350));
+        byte[] written = write(jpeg, false);
+        assertArrayEquals(jpeg, written);
+    }
+
+    private static byte[] write(byte[] jpeg, boolean tagged) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean result = new ExifWriter(null, 0, IMAGE_NUMBER).writeTo(out, jpeg);
+        if (tagged) {
+            assertTrue(result);
+        } else {
+            assertFalse(result);
+        }
+        return out.toByteArray();
+    }
+
+    /** SOI, APP0, an optional Exif APP1 with the given TIFF data, a stub scan and EOI */
+    private static byte[] jpeg(byte[] tiff) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        byte[] app0 = {(byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+        out.write(app0, 0, app0.length);
+        if (tiff != null) {
+            int length = 2 + 6 + tiff.length;
+            out.write(0xFF);
+            out.write(0xE1);
+            out.write(length >> 8);
+            out.write(length);
+            byte[] header = {'E', 'x', 'i', 'f', 0, 0};
+            out.write(header, 0, header.length);
+            out.write(tiff, 0, tiff.length);
+        }
+        byte[] scan = {(byte) 0xFF, (byte) 0xDA, 0, 2, 1, 2, 3, (byte) 0xFF, (byte) 0xD9};
+        out.write(scan, 0, scan.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Little endian TIFF data as cameras write it: IFD0 with a make and the Exif IFD pointer, the
+     * Exif IFD with an exposure time and a maker note, IFD1, then the thumbnail at the end.
+     */
+    private static byte[] cameraTiff(int thumbnailLength, int makerNoteLength) {
+        int ifd0 = 8;
+        int exif = ifd0 + 2 + 2 * 12 + 4;
+        int makerNote = exif + 2 + 2 * 12 + 4;
+        int ifd1 = makerNote + makerNoteLength;
+        int thumbnail = ifd1 + 2 + 2 * 12 + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(thumbnail + thumbnailLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifd0);
+        buffer.putShort((short) 2);
+        entry(buffer, TAG_MAKE, 4, 0x11223344);
+        entry(buffer, TAG_EXIF_IFD, 4, exif);
+        buffer.putInt(ifd1);
+        buffer.putShort((short) 2);
+        entry(buffer, TAG_EXPOSURE_TIME, 4, 0x55667788);
+        entry(buffer, TAG_MAKER_NOTE, 7, makerNote);
+        buffer.putInt(0);
+        buffer.position(ifd1);
+        buffer.putShort((short) 2);
+        entry(buffer, TAG_THUMBNAIL_OFFSET, 4, thumbnail);
+        entry(buffer, TAG_THUMBNAIL_LENGTH, 4, thumbnailLength);
+        buffer.putInt(0);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0xAB);
+        }
+        return buffer.array();
+    }
+
+    private static void entry(ByteBuffer buffer, int tag, int type, int value) {
+        buffer.putShort((short) tag).putShort((short) type).putInt(1).putInt(value);
+    }
+
+    /** Just enough of a TIFF reader to follow IFDs */
+    private static class Tiff {
+        final ByteBuffer data;
+        final int start;
+
+        private Tiff(ByteBuffer data, int start) {
+            this.data = data;
+            this.start = start;
+        }
+
+        /** The TIFF data of the first APP1 segment */
+        static Tiff parse(byte[] jpeg) {
+            int pos = 2;
+            while ((jpeg[pos + 1] & 0xFF) != 0xE1) {
+                pos += 2 + (((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF));
+            }
+            int start = pos + 4 + 6;
+            ByteOrder order = jpeg[start] == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            return new Tiff(ByteBuffer.wrap(jpeg).order(order), start);
+        }
+
+        int ifd0() {
+            return data.getInt(start + 4);
+        }
+
+        int nextIfd(int ifd) {
+            int count = data.getShort(start + ifd) & 0xFFFF;
+            return data.getInt(start + ifd + 2 + count * 12);
+        }
+
+        /** Position of the entry, -1 if there is none; also checks entries are in tag order */
+        int find(int ifd, int tag) {
+            int count = data.getShort(start + ifd) & 0xFFFF;
+            int found = -1;
+            int previous = -1;
+            for (int i = 0; i < count; ++i) {
+                int entry = start + ifd + 2 + i * 12;
+                int entryTag = data.getShort(entry) & 0xFFFF;
+                assertTrue(entryTag > previous);
+                previous = entryTag;
+                if (entryTag == tag) {
+                    found = entry;
+                }
+            }
+            return found;
+        }
+
+        int value(int ifd, int tag) {
+            int entry = find(ifd, tag);
+            assertTrue(entry >= 0);
+            return data.getInt(entry + 8);
+        }
+    }
+}
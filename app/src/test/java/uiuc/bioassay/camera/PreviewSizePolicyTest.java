@@ -0,0 +1,94 @@
+package uiuc.bioassay.camera;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Preview size strategies against size lists recorded from real devices.
+ */
+public class PreviewSizePolicyTest {
+    /** Back camera of a Nexus 5 */
+    private static final List<PreviewSizePolicy.Size> NEXUS_5 = sizes(
+            1920, 1080, 1280, 960, 1280, 720, 800, 480, 768, 432, 720, 480, 640, 480, 576, 432,
+            480, 320, 384, 288, 352, 288, 320, 240, 240, 160, 176, 144);
+    /** Front camera of a Galaxy S3, no 3:2 size */
+    private static final List<PreviewSizePolicy.Size> GALAXY_S3_FRONT = sizes(
+            1280, 720, 960, 720, 640, 480, 320, 240);
+
+    private static final PreviewSizePolicy.Size PICTURE_4_3 = new PreviewSizePolicy.Size(3264, 2448);
+    private static final PreviewSizePolicy.Size PICTURE_16_9 = new PreviewSizePolicy.Size(3264, 1836);
+    private static final PreviewSizePolicy.Size PICTURE_3_2 = new PreviewSizePolicy.Size(3000, 2000);
+
+    @Test
+    public void matchingAspectKeepsExactRatio() {
+        assertEquals(sizes(1280, 960, 640, 480, 576, 432, 384, 288, 320, 240),
+                PreviewSizePolicy.matchingAspect(NEXUS_5, PICTURE_4_3));
+        assertEquals(sizes(1920, 1080, 1280, 720, 768, 432),
+                PreviewSizePolicy.matchingAspect(NEXUS_5, PICTURE_16_9));
+    }
+
+    @Test
+    public void matchingAspectFallsBackToClosestRatio() {
+        assertEquals(sizes(960, 720, 640, 480, 320, 240),
+                PreviewSizePolicy.matchingAspect(GALAXY_S3_FRONT, PICTURE_3_2));
+    }
+
+    @Test
+    public void displayChoosesSmallestCoveringSize() {
+        // Portrait view, orientation does not matter
+        assertEquals(size(640, 480), new PreviewSizePolicy.Display(480, 640).choose(NEXUS_5, PICTURE_4_3));
+        assertEquals(size(1920, 1080),
+                new PreviewSizePolicy.Display(1080, 1920).choose(NEXUS_5, PICTURE_16_9));
+    }
+
+    @Test
+    public void displayFallsBackToLargestWhenNothingCoversTheView() {
+        assertEquals(size(1280, 960),
+                new PreviewSizePolicy.Display(1080, 1920).choose(NEXUS_5, PICTURE_4_3));
+    }
+
+    @Test
+    public void displayUsesClosestRatio() {
+        assertEquals(size(960, 720),
+                new PreviewSizePolicy.Display(720, 720).choose(GALAXY_S3_FRONT, PICTURE_3_2));
+    }
+
+    @Test
+    public void analysisChoosesLargestWithinBudget() {
+        assertEquals(size(640, 480), new PreviewSizePolicy.Analysis(640 * 480).choose(NEXUS_5, PICTURE_4_3));
+        assertEquals(size(576, 432), new PreviewSizePolicy.Analysis(640 * 480 - 1).choose(NEXUS_5, PICTURE_4_3));
+    }
+
+    @Test
+    public void analysisFallsBackToSmallestWhenNothingFitsTheBudget() {
+        // 176x144 is smaller but not 4:3
+        assertEquals(size(320, 240), new PreviewSizePolicy.Analysis(50000).choose(NEXUS_5, PICTURE_4_3));
+    }
+
+    @Test
+    public void largerTakesTheBiggerChoice() {
+        PreviewSizePolicy.Strategy display = new PreviewSizePolicy.Display(480, 640);
+        PreviewSizePolicy.Strategy analysis = new PreviewSizePolicy.Analysis(1280 * 960);
+        assertEquals(size(1280, 960), new PreviewSizePolicy.Larger(display, analysis).choose(NEXUS_5, PICTURE_4_3));
+        assertEquals(size(1280, 960), new PreviewSizePolicy.Larger(analysis, display).choose(NEXUS_5, PICTURE_4_3));
+
+        PreviewSizePolicy.Strategy small = new PreviewSizePolicy.Analysis(320 * 240);
+        assertEquals(size(640, 480), new PreviewSizePolicy.Larger(small, display).choose(NEXUS_5, PICTURE_4_3));
+    }
+
+    private static PreviewSizePolicy.Size size(int width, int height) {
+        return new PreviewSizePolicy.Size(width, height);
+    }
+
+    private static List<PreviewSizePolicy.Size> sizes(int... dimensions) {
+        List<PreviewSizePolicy.Size> list = new ArrayList<>();
+        for (int i = 0; i < dimensions.length; i += 2) {
+            list.add(size(dimensions[i], dimensions[i + 1]));
+        }
+        return list;
+    }
+}
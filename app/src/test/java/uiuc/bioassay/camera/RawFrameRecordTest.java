@@ -0,0 +1,58 @@
+package uiuc.bioassay.camera;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records written with {@link RawFrameRecord#putHeader} read back in place.
+ */
+public class RawFrameRecordTest {
+    private static final int NV21 = 17;
+
+    @Test
+    public void readsRecordInsideLargerBuffer() throws IOException {
+        ByteBuffer buffer = record(40, 6);
+        buffer.position(40);
+        RawFrameRecord record = RawFrameRecord.readFrom(buffer, "test");
+        assertEquals(NV21, record.format);
+        assertEquals(4, record.width);
+        assertEquals(1, record.height);
+        assertEquals(123456789012L, record.timestampNs);
+        byte[] data = record.toByteArray();
+        assertEquals(6, data.length);
+        for (int i = 0; i < data.length; ++i) {
+            assertEquals(i + 1, data[i]);
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedRecord() {
+        ByteBuffer buffer = record(0, 6);
+        buffer.limit(buffer.limit() - 1);
+        try {
+            RawFrameRecord.readFrom(buffer, "test");
+            assertTrue(false);
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Truncated"));
+        }
+    }
+
+    /** A record of {@code length} data bytes 1, 2, ... at {@code offset} */
+    private static ByteBuffer record(int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(offset + RawFrameRecord.HEADER_SIZE + length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(offset);
+        RawFrameRecord.putHeader(buffer, NV21, 4, 1, length, 123456789012L);
+        for (int i = 0; i < length; ++i) {
+            buffer.put((byte) (i + 1));
+        }
+        buffer.flip();
+        return buffer;
+    }
+}